@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// local copy of the board, kept up to date from GET since= replies and pushed EVENT lines
+// so the client only ever downloads what changed since the version it last saw
+public class BoardMirror
+{
+    public static class MirrorNote
+    {
+        public final int x;
+        public final int y;
+        public final String color;
+        public final String message;
+
+        // pins this note holds, a shake removes notes with none
+        final LinkedHashSet<Long> pins = new LinkedHashSet<>();
+
+        MirrorNote(int x, int y, String color, String message)
+        {
+            this.x = x;
+            this.y = y;
+            this.color = color;
+            this.message = message;
+        }
+    }
+
+    // note size from the hello line, needed to know which notes a pin lands on
+    private int notewidth;
+    private int noteheight;
+
+    // notes in posting order, keyed by position (the server never allows two at the same spot)
+    private final LinkedHashMap<Long, MirrorNote> notes = new LinkedHashMap<>();
+    private final LinkedHashSet<Long> pins = new LinkedHashSet<>();
+
+    // -1 until the first sync, then the last version applied
+    private long version;
+
+    // what reply we are in the middle of reading, if any
+    private String replykind;
+    private long replyversion;
+    private MirrorNote lastfullnote;
+    private boolean syncpending;
+
+    public BoardMirror(int notewidth, int noteheight)
+    {
+        this.notewidth = notewidth;
+        this.noteheight = noteheight;
+        this.version = -1;
+    }
+
+    public long version()
+    {
+        return version;
+    }
+
+    public int notecount()
+    {
+        return notes.size();
+    }
+
+    public int pincount()
+    {
+        return pins.size();
+    }
+
+    public List<MirrorNote> notes()
+    {
+        return new ArrayList<>(notes.values());
+    }
+
+    // the request to send next, version 0 is older than anything so the first sync gets the whole board
+    public String sincecommand()
+    {
+        syncpending = true;
+        return "GET since=" + Math.max(0, version);
+    }
+
+    public boolean syncpending()
+    {
+        return syncpending;
+    }
+
+    // feed every line from the server through here
+    // returns true when the mirror has fallen behind and a GET since= should be sent
+    public boolean handleline(String line)
+    {
+        if (line == null)
+        {
+            return false;
+        }
+
+        String[] parts = line.split(" ", 3);
+
+        if (replykind == null)
+        {
+            // start of a sync reply
+            if (line.startsWith("OK DELTA ") || line.startsWith("OK FULL "))
+            {
+                String[] head = line.split(" ");
+                replykind = head[1];
+                replyversion = Long.parseLong(head[2]);
+
+                if (replykind.equals("FULL"))
+                {
+                    notes.clear();
+                    pins.clear();
+                    lastfullnote = null;
+                }
+
+                return false;
+            }
+
+            if (line.startsWith("EVENT "))
+            {
+                return handleevent(line, true);
+            }
+
+            return false;
+        }
+
+        if (line.equals("END"))
+        {
+            if (replykind.equals("FULL") || replyversion > version)
+            {
+                version = replyversion;
+            }
+
+            replykind = null;
+            syncpending = false;
+            return false;
+        }
+
+        if (replykind.equals("DELTA"))
+        {
+            if (line.startsWith("EVENT "))
+            {
+                handleevent(line, false);
+            }
+
+            return false;
+        }
+
+        // FULL: NOTE lines each followed by the pins that note holds
+        if (parts[0].equals("NOTE"))
+        {
+            String[] n = line.split(" ", 5);
+            lastfullnote = new MirrorNote(Integer.parseInt(n[1]), Integer.parseInt(n[2]), n[3], n.length > 4 ? n[4] : "");
+            notes.put(key(lastfullnote.x, lastfullnote.y), lastfullnote);
+        }
+        else if (parts[0].equals("PIN") && lastfullnote != null)
+        {
+            String[] p = line.split(" ");
+            long k = key(Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+            lastfullnote.pins.add(k);
+            pins.add(k);
+        }
+
+        return false;
+    }
+
+    // applies one EVENT line, pushed is true for lines that arrived outside a sync reply
+    private boolean handleevent(String line, boolean pushed)
+    {
+        // EVENT RESYNC means the server dropped events for us
+        if (line.equals("EVENT RESYNC"))
+        {
+            return !syncpending;
+        }
+
+        String[] e = line.split(" ", 4);
+        long v;
+        try
+        {
+            v = Long.parseLong(e[1]);
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+
+        // already have it (a delta and the pushed events can overlap)
+        if (version >= 0 && v <= version)
+        {
+            return false;
+        }
+
+        // never synced, or something got skipped, dont guess
+        if (pushed && (version < 0 || v != version + 1))
+        {
+            return !syncpending;
+        }
+
+        apply(e[2], e.length > 3 ? e[3] : "");
+        version = v;
+        return false;
+    }
+
+    private void apply(String kind, String rest)
+    {
+        String[] a = rest.split(" ", 4);
+
+        if (kind.equals("POSTED"))
+        {
+            MirrorNote n = new MirrorNote(Integer.parseInt(a[0]), Integer.parseInt(a[1]), a[2], a.length > 3 ? a[3] : "");
+            notes.put(key(n.x, n.y), n);
+        }
+        else if (kind.equals("PINNED"))
+        {
+            int px = Integer.parseInt(a[0]);
+            int py = Integer.parseInt(a[1]);
+            long k = key(px, py);
+
+            // same rule as the server, the pin holds the notes under it right now
+            for (MirrorNote n : notes.values())
+            {
+                if (n.x <= px && px < n.x + notewidth && n.y <= py && py < n.y + noteheight)
+                {
+                    n.pins.add(k);
+                }
+            }
+
+            pins.add(k);
+        }
+        else if (kind.equals("UNPINNED"))
+        {
+            long k = key(Integer.parseInt(a[0]), Integer.parseInt(a[1]));
+
+            for (MirrorNote n : notes.values())
+            {
+                n.pins.remove(k);
+            }
+
+            pins.remove(k);
+        }
+        else if (kind.equals("SHAKEN"))
+        {
+            Iterator<MirrorNote> it = notes.values().iterator();
+            while (it.hasNext())
+            {
+                if (it.next().pins.isEmpty())
+                {
+                    it.remove();
+                }
+            }
+        }
+        else if (kind.equals("CLEARED"))
+        {
+            notes.clear();
+            pins.clear();
+        }
+    }
+
+    private static long key(int x, int y)
+    {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
@@ -2,16 +2,22 @@
 // client protocol notes based on updated rfc
 // outgoing requests (these must be one line each):
     // POST <x> <y> <color> <message>
-    // GET [color=<color>] [contains=<x> <y>] [refersTo=<substring>]  // any subset, if none just simply GET
+    // GET [color=<color>] [contains=<x> <y>] [refersTo=<substring>]  // any subset in any order, refersTo last since it takes the rest of the line
     // PIN <x> <y>
     // UNPIN <x> <y>
     // SHAKE
     // CLEAR
     // DISCONNECT
+    // SUBSCRIBE  // server then pushes EVENT lines for every change, no need to keep clicking get
+    // GET since=<version>  // only what changed after version, keeps the local board mirror current
+    // GET ... limit=<n> after=<seq>  // one page, the reply header ends with NEXT <seq> while there is more
 
 // incoming replies:
     // print every received line exactly as received (no parsing)
     // multi-line replies (like get) end with END (print it too)
+    // EVENT lines can arrive between replies once subscribed, EVENT RESYNC means send a fresh GET since=
+    // OK DELTA / OK FULL replies (and EVENT lines) are also fed to BoardMirror
+    // the output area only keeps the last MAXOUTPUTLINES lines so huge replies dont eat all memory
 
 import java.awt.*;
 import java.awt.event.WindowAdapter;
@@ -43,6 +49,15 @@ public class ClientGUI extends JFrame
     private JTextField referstofield;
     private JButton getbutton;
     private JButton getpinsbutton;
+    private JButton subscribebutton;
+    private JButton syncbutton;
+    private JTextField pagesizefield;
+    private JButton nextpagebutton;
+
+    // paging state, the last paged get (without after=) and where the next page starts, -1 if no more
+    private String lastpagedget;
+    private long nextafter = -1;
+    private String lastpagedrefersto = "";
 
     // pin/unpin controls
     private JTextField pinxfield;
@@ -57,10 +72,14 @@ public class ClientGUI extends JFrame
     // output controls
     private JTextArea outputarea;
     private JButton clearoutputbutton;
+    private static final int MAXOUTPUTLINES = 5000;
 
     // connection backend
     private ClientConnection clientconnection;
 
+    // local copy of the board, created once hello tells us the note size
+    private BoardMirror mirror;
+
     // handshake information
     private boolean helloreceived;
     private int boardwidth;
@@ -138,6 +157,21 @@ public class ClientGUI extends JFrame
             dogetpins();
         });
 
+        subscribebutton.addActionListener(e ->
+        {
+            dosubscribe();
+        });
+
+        syncbutton.addActionListener(e ->
+        {
+            dosync();
+        });
+
+        nextpagebutton.addActionListener(e ->
+        {
+            donextpage();
+        });
+
         pinbutton.addActionListener(e ->
         {
             dopin(true);
@@ -371,6 +405,12 @@ public class ClientGUI extends JFrame
 
         getbutton = new JButton("send get");
         getpinsbutton = new JButton("get pins");
+        subscribebutton = new JButton("live updates");
+        syncbutton = new JButton("get changes");
+
+        JLabel pagesizelabel = new JLabel("page size:");
+        pagesizefield = new JTextField(5);
+        nextpagebutton = new JButton("next page");
 
         // row 0
         gbc.gridx = 0;
@@ -418,6 +458,32 @@ public class ClientGUI extends JFrame
         gbc.gridwidth = 2;
         panel.add(getpinsbutton, gbc);
 
+        // row 4
+        gbc.gridx = 0;
+        gbc.gridy = 4;
+        gbc.gridwidth = 2;
+        panel.add(syncbutton, gbc);
+
+        gbc.gridx = 2;
+        gbc.gridy = 4;
+        gbc.gridwidth = 2;
+        panel.add(subscribebutton, gbc);
+        gbc.gridwidth = 1;
+
+        // row 5
+        gbc.gridx = 0;
+        gbc.gridy = 5;
+        panel.add(pagesizelabel, gbc);
+
+        gbc.gridx = 1;
+        gbc.gridy = 5;
+        panel.add(pagesizefield, gbc);
+
+        gbc.gridx = 2;
+        gbc.gridy = 5;
+        gbc.gridwidth = 2;
+        panel.add(nextpagebutton, gbc);
+
         gbc.gridwidth = 1;
 
         return panel;
@@ -713,7 +779,7 @@ public class ClientGUI extends JFrame
             return;
         }
 
-        // build: GET [color=...] [contains=x y] [refersTo=...]
+        // build: GET [color=...] [contains=x y] [limit=...] [refersTo=...]
         StringBuilder commandbuilder = new StringBuilder("GET");
 
         // color is optional, skip if any or placeholder
@@ -756,12 +822,49 @@ public class ClientGUI extends JFrame
             return;
         }
 
-        if (refersto.length() > 0)
+        // refersTo takes the rest of the line on the server, so it always goes last
+        String referstosuffix = refersto.length() > 0 ? " refersTo=" + refersto : "";
+
+        // page size is optional, blank means everything in one reply
+        Integer pagesize = parseoptionalnonnegativeint(pagesizefield, "page size");
+        if (pagesize == null && pagesizefield.getText().trim().length() > 0)
         {
-            commandbuilder.append(" refersTo=").append(refersto);
+            return;
         }
 
-        String command = commandbuilder.toString();
+        if (pagesize != null && pagesize > 0)
+        {
+            commandbuilder.append(" limit=").append(pagesize);
+            lastpagedget = commandbuilder.toString();
+            lastpagedrefersto = referstosuffix;
+        }
+        else
+        {
+            lastpagedget = null;
+        }
+
+        String command = commandbuilder + referstosuffix;
+
+        appendoutputline("> " + command);
+
+        try
+        {
+            clientconnection.sendline(command);
+        }
+        catch (Exception ex)
+        {
+            JOptionPane.showMessageDialog(this, "send failed: " + ex.getMessage());
+        }
+    }
+
+    private void donextpage()
+    {
+        if (!ensureconnected() || lastpagedget == null || nextafter < 0)
+        {
+            return;
+        }
+
+        String command = lastpagedget + " after=" + nextafter + lastpagedrefersto;
 
         appendoutputline("> " + command);
 
@@ -796,6 +899,51 @@ public class ClientGUI extends JFrame
         }
     }
 
+    private void dosync()
+    {
+        if (!ensureconnected() || mirror == null)
+        {
+            return;
+        }
+
+        String command = mirror.sincecommand();
+
+        appendoutputline("> " + command);
+
+        try
+        {
+            clientconnection.sendline(command);
+        }
+        catch (Exception ex)
+        {
+            JOptionPane.showMessageDialog(this, "send failed: " + ex.getMessage());
+        }
+    }
+
+    private void dosubscribe()
+    {
+        if (!ensureconnected())
+        {
+            return;
+        }
+
+        String command = "SUBSCRIBE";
+
+        appendoutputline("> " + command);
+
+        try
+        {
+            clientconnection.sendline(command);
+
+            // once is enough per connection, events keep coming until disconnect
+            subscribebutton.setEnabled(false);
+        }
+        catch (Exception ex)
+        {
+            JOptionPane.showMessageDialog(this, "send failed: " + ex.getMessage());
+        }
+    }
+
     // pin and unpin
 
     private void dopin(boolean ispin)
@@ -923,6 +1071,45 @@ public class ClientGUI extends JFrame
                 setconnectedstate(true);
             }
         }
+
+        // a paged reply says where the next page starts: OK <n> RESULTS NEXT <seq>
+        if (line.startsWith("OK ") && line.contains(" RESULTS"))
+        {
+            int at = line.indexOf(" NEXT ");
+            nextafter = -1;
+
+            if (at >= 0)
+            {
+                try
+                {
+                    nextafter = Long.parseLong(line.substring(at + 6).trim());
+                }
+                catch (Exception ex)
+                {
+                    // leave paging off
+                }
+            }
+
+            nextpagebutton.setEnabled(nextafter >= 0 && lastpagedget != null);
+        }
+
+        if (mirror != null)
+        {
+            boolean behind = mirror.handleline(line);
+
+            // a sync reply just finished
+            if (line.equals("END") && !mirror.syncpending() && mirror.version() >= 0)
+            {
+                statuslabel.setText("status: connected, mirror v" + mirror.version() + " "
+                        + mirror.notecount() + " notes " + mirror.pincount() + " pins");
+            }
+
+            // missed some events, catch up without the user clicking anything
+            if (behind)
+            {
+                dosync();
+            }
+        }
     }
 
     private void handledisconnect(String reason)
@@ -930,6 +1117,7 @@ public class ClientGUI extends JFrame
         appendoutputline("(client) disconnected: " + reason);
 
         clientconnection = null;
+        mirror = null;
 
         // reset handshake info
         helloreceived = false;
@@ -986,6 +1174,8 @@ public class ClientGUI extends JFrame
                 validcolors = new String[0];
             }
 
+            mirror = new BoardMirror(notewidth, noteheight);
+
             // update labels and dropdowns
             serverinfolabel.setText("server: " + boardwidth + "x" + boardheight + " note:" + notewidth + "x" + noteheight);
             updatecolorboxes();
@@ -1039,10 +1229,24 @@ public class ClientGUI extends JFrame
         }
     }
 
-    // adds a line to output and scrolls down
+    // adds a line to output and scrolls down, dropping the oldest lines past MAXOUTPUTLINES
     private void appendoutputline(String line)
     {
         outputarea.append(line + "\n");
+
+        int extra = outputarea.getLineCount() - MAXOUTPUTLINES;
+        if (extra > 0)
+        {
+            try
+            {
+                outputarea.replaceRange("", 0, outputarea.getLineEndOffset(extra - 1));
+            }
+            catch (Exception ex)
+            {
+                // just keep everything
+            }
+        }
+
         outputarea.setCaretPosition(outputarea.getDocument().getLength());
     }
 
@@ -1280,6 +1484,9 @@ public class ClientGUI extends JFrame
         // get can still be used even before hello (no color filter still works)
         getbutton.setEnabled(isconnected);
         getpinsbutton.setEnabled(isconnected);
+        subscribebutton.setEnabled(isconnected);
+        syncbutton.setEnabled(isconnected);
+        nextpagebutton.setEnabled(isconnected && nextafter >= 0 && lastpagedget != null);
 
         pinbutton.setEnabled(isconnected);
         unpinbutton.setEnabled(isconnected);
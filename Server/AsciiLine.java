@@ -0,0 +1,39 @@
+import java.nio.charset.StandardCharsets;
+
+public final class AsciiLine implements CharSequence {
+    //Read-only view of one command line still sitting in a network byte buffer. Each byte is one char, which is
+    //exact for the ASCII keywords, numbers and colors the tokenizer looks at. UTF-8 is only decoded when text is
+    //actually taken out with toString, which in practice is just the POST message.
+    //The view is only valid until the owning reader moves on to the next line.
+    private byte[] buf;
+    private int off, len;
+
+    public AsciiLine() {}
+
+    private AsciiLine(byte[] buf, int off, int len){
+        set(buf, off, len);
+    }
+
+    public AsciiLine set(byte[] buf, int off, int len){
+        this.buf = buf;
+        this.off = off;
+        this.len = len;
+        return this;
+    }
+
+    @Override
+    public int length() {return len;}
+
+    @Override
+    public char charAt(int i) {return (char) (buf[off + i] & 0xff);}
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return new AsciiLine(buf, off + start, end - start);
+    }
+
+    @Override
+    public String toString(){
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+}
@@ -1,201 +1,409 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
 
-public class Board {
+public abstract class Board {
     public enum Result {
         //Enum class which relays information back up to the top level protocol for error messaging
-        OK, 
+        OK,
         OUT_OF_BOUNDS,
         COMPLETE_OVERLAP,
         NO_NOTE_AT_COORDINATE,
         PIN_NOT_FOUND
     }
 
-    private final Protocol.Config cfg;
-    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock(); //To prevent race conditions have a simple rw lock.
-    
-    private final List <Note> notes = new ArrayList<>();
-    private long seq = 0;
+    //Storage modes selectable at startup. Protocol only ever talks to the Board type.
+    public static Board create(String store, Protocol.Config cfg){
+        return create(store, cfg, null);
+    }
 
-    public Board (Protocol.Config cfg){
-        this.cfg = cfg;
+    //The mapped store keeps its notes in file, the others ignore it.
+    public static Board create(String store, Protocol.Config cfg, Path file){
+        return switch (store) {
+            case "locked" -> new LockedBoard(cfg);
+            case "snapshot" -> new SnapshotBoard(cfg);
+            case "striped" -> new StripedBoard(cfg);
+            case "compact" -> new CompactBoard(cfg);
+            case "mapped" -> {
+                if (file == null) throw new IllegalArgumentException("The mapped store needs --store-file=FILE");
+                yield new MappedBoard(cfg, file);
+            }
+            default -> throw new IllegalArgumentException("Unknown board store: " + store);
+        };
     }
 
-    //Functions below are small relativly atomic helper functions.
-    public boolean isOnBoardPoint(int px, int py){
-        return 0 <= px && px < cfg.board_width() && 0 <= py && py < cfg.board_height();
+    protected final Protocol.Config cfg;
+    //Optional persistence, attached by Main after the log has been replayed.
+    private volatile WriteAheadLog wal;
+    //Connections that asked for a live stream of changes
+    private final ChangeFeed feed = new ChangeFeed();
+    //Every change gets the next version. The high bits hold a random epoch drawn at boot, and the low 40 bits count
+    //changes, so a version handed out before a restart falls outside this boot's range and gets a full reply.
+    //A boot clock would wrap every few weeks and repeat for two boots in the same second; two random epochs only
+    //meet one time in four million.
+    //The last HISTORY event lines are kept, indexed by version, for GET since=.
+    private static final int HISTORY = 4096;
+    private static final int STREAM_PAGE = 512;
+    private static final byte[] END = "END\n".getBytes(StandardCharsets.UTF_8);
+    private final byte[][] history = new byte[HISTORY][];
+    private final long firstVersion = (long) (1 + new SecureRandom().nextInt((1 << 22) - 1)) << 40; //Never 0, so since=0 is always a full reply
+    private long version = firstVersion; //Guarded by history
+
+    protected Board (Protocol.Config cfg){
+        this.cfg = cfg;
     }
 
-    private boolean noteFits(int x, int y){
-        return 0 <= x && 0 <= y && x + cfg.note_width() <= cfg.board_width() && y + cfg.note_height() <= cfg.board_height();
+    public ChangeFeed feed() {return feed;}
+
+    public void attachLog(WriteAheadLog wal){
+        this.wal = wal;
     }
 
-    private boolean hasCompleteOverlap (int x, int y){
-        for (Note n: notes) if (n.x() == x && n.y() == y) return true;
+    //Changes hold the read side while they run, so shutdown can turn new ones away and wait out the rest before the
+    //log closes. Otherwise a change could land in memory after the log stopped taking records.
+    private final ReentrantReadWriteLock writes = new ReentrantReadWriteLock();
+    private boolean closed; //Guarded by writes
+
+    //Called by Protocol before each change, false once shutdown began and the change has to be refused.
+    //Every true must be followed by endWrite.
+    public boolean beginWrite(){
+        writes.readLock().lock(); //Aquires lock
+        if (!closed) return true;
+        writes.readLock().unlock(); //Releases lock
         return false;
     }
-    
-    private boolean isPinInNote(Note n, int px, int py){
-        return n.x() <= px && px < n.x() + cfg.note_width() && n.y() <= py && py < n.y() + cfg.note_height();
+
+    public void endWrite(){
+        writes.readLock().unlock(); //Releases lock
     }
 
-    private String noteLine (Note n){
-        return "NOTE " + n.x() + " " + n.y() + " " + n.color() + " " + escapeMessage(n.message());
+    //Refuses every later change and waits for the ones in progress. The shutdown hook calls it before closing the log.
+    public void closeWrites(){
+        writes.writeLock().lock(); //Aquires lock
+        try {
+            closed = true;
+        } finally {
+            writes.writeLock().unlock(); //Releases lock
+        }
+    }
 
+    //Called by Protocol after a command, before it answers. Waits for the command's log record when the fsync policy says so.
+    public void awaitDurable(){
+        WriteAheadLog w = wal;
+        if (w != null) w.awaitDurable();
     }
 
-    private String escapeMessage(String s){
-        return s;
+    //Non blocking form of awaitDurable for the event loop server: the log record the calling thread has to wait for
+    //before acknowledging (0 for none), and a callback for when it is durable.
+    public long pendingDurable(){
+        WriteAheadLog w = wal;
+        return w == null ? 0 : w.pending();
     }
 
-    public Result post(int x, int y, String color, String message){
-        rw.writeLock().lock(); //Aquires lock
-        try{
-            //Determines if note is in valid position
-            if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
-            if (hasCompleteOverlap(x, y)) return Result.COMPLETE_OVERLAP;
-            //If so creates new note object and adds it to the board object
-            Note n = new Note(x, y, color, message, ++seq);
-            notes.add(n);
-            return Result.OK;
-        } finally {
-            rw.writeLock().unlock(); //Releases lock
-        }
+    public void whenDurable(long record, Runnable then){
+        WriteAheadLog w = wal;
+        if (w == null) then.run();
+        else w.whenDurable(record, then);
     }
 
+    //Throws if the log failed before record got to disk, the change must not be acknowledged then.
+    public boolean isDurable(long record){
+        WriteAheadLog w = wal;
+        return w == null || w.isDurable(record);
+    }
 
+    //Engines call these after a successful mutation while still holding the lock that ordered it, so the log order
+    //and the order subscribers see events in both match the order the changes were made.
+    protected void logPost(int x, int y, int color, String message){
+        WriteAheadLog w = wal;
+        if (w != null) w.post(x, y, cfg.colorName(color), message);
+        record("POSTED " + x + " " + y + " " + cfg.colorName(color) + " " + message);
+    }
 
-    public Result pin(int x, int y){
-        rw.writeLock().lock(); //Aquires lock
-        try {
-            boolean pinnedAny = false;
-            Pin p = new Pin(x,y);
-            //Checks each note to determine overlap, and updates variables if true.
-            for (Note n: notes){
-                if (!n.pins().contains(p) && isPinInNote(n, x, y)){
-                    n.pins().add(p);
-                    pinnedAny = true;
-                }
-            }
-            return pinnedAny? Result.OK : Result.NO_NOTE_AT_COORDINATE;
-        } finally {
-            rw.writeLock().unlock(); //Releases lock
-        }
+    protected void logPin(int x, int y){
+        WriteAheadLog w = wal;
+        if (w != null) w.pin(x, y);
+        record("PINNED " + x + " " + y);
     }
 
-    public Result unpin(int x, int y){
-        rw.writeLock().lock(); //Aquires lock
-        try {
-            boolean anything = false;
-            //Checks through all notes and jeeps track of found
-            for (Note n: notes){
-                for (Pin p: n.pins()){
-                    if (p.x() == x && p.y() == y) {
-                        n.pins().remove(p);
-                        anything = true;
-                        break;
-                    }
-                }
-            }
-            //If found anything remove most recent
-            if (!anything) return Result.PIN_NOT_FOUND;
-            return Result.OK;
-        } finally {
-            rw.writeLock().unlock(); //Releases lock
+    protected void logUnpin(int x, int y){
+        WriteAheadLog w = wal;
+        if (w != null) w.unpin(x, y);
+        record("UNPINNED " + x + " " + y);
+    }
+
+    protected void logShake(int removed){
+        WriteAheadLog w = wal;
+        if (w != null) w.shake();
+        record("SHAKEN " + removed);
+    }
+
+    protected void logClear(){
+        WriteAheadLog w = wal;
+        if (w != null) w.clear();
+        record("CLEARED");
+    }
+
+    //Gives the change the next version, keeps its event line for GET since= and pushes it to subscribers.
+    //Striped engines can get here from several stripes at once, the history lock puts them in one order.
+    private void record(String change){
+        synchronized (history) {
+            version++;
+            byte[] line = ("EVENT " + version + " " + change + "\n").getBytes(StandardCharsets.UTF_8);
+            history[(int) (version % HISTORY)] = line;
+            if (!feed.isEmpty()) feed.publish(line);
         }
     }
 
-    public int shake () {
-        rw.writeLock().lock();  //Aquires lock
-        try{
-            //Remove all notes not attached to board through force. Keep track of count
-            int before = notes.size();
-            notes.removeIf(n -> n.pins().isEmpty());
-            return before - notes.size();
-        } finally {
-            rw.writeLock().unlock(); //Releases lock
+    public long version(){
+        synchronized (history) {
+            return version;
         }
     }
 
-    public void clear () {
-        rw.writeLock().lock();  //Aquires lock
-        try {
-            //Wipe all notes with helper function.
-            notes.clear();
-        } finally {
-            rw.writeLock().unlock(); //Releases lock
+    //Answers GET since=: the event lines after since, oldest first, as OK DELTA <version> <count> ... END.
+    //When since is older than the history kept, or from before a restart, falls back to the whole board as
+    //OK FULL <version> <count>, each NOTE line followed by PIN lines for the pins it holds, then END, taken
+    //atomically with the version it is at.
+    public byte[] changesSince(long since){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        synchronized (history) {
+            if (since <= version && since >= Math.max(firstVersion, version - HISTORY)){
+                out.writeBytes(("OK DELTA " + version + " " + (version - since) + "\n").getBytes(StandardCharsets.UTF_8));
+                for (long v = since + 1; v <= version; v++) out.writeBytes(history[(int) (v % HISTORY)]);
+                out.writeBytes(END);
+                return out.toByteArray();
+            }
+        }
+        long[] at = new long[1];
+        BoardImage img = capture(() -> at[0] = version());
+        StringBuilder sb = new StringBuilder();
+        sb.append("OK FULL ").append(at[0]).append(" ").append(img.count()).append("\n");
+        for (int i = 0; i < img.count(); i++){
+            sb.append("NOTE ").append(img.x(i)).append(" ").append(img.y(i)).append(" ").append(cfg.colorName(img.color(i)))
+                    .append(" ").append(escapeMessage(img.message(i))).append("\n");
+            //The pins this note holds, a mirror needs them to replay later shakes
+            for (long p: img.pins(i)) sb.append("PIN ").append((int) (p >> 32)).append(" ").append((int) p).append("\n");
         }
+        sb.append("END\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    public String getAllNotes(){
-        rw.readLock().lock();  //Aquires lock
-        try {
-            //Use string builder to track all notes and display neatly.
-            StringBuilder sb = new StringBuilder();
-            sb.append("OK ").append(notes.size()).append(" RESULTS\n");
-            for (Note n: notes) sb.append(noteLine(n)).append("\n");
-            sb.append("END\n");
-            return sb.toString();
+    //Colors are passed around as their ordinal in cfg.colors(), already validated by Protocol.
+    public abstract Result post(int x, int y, int color, String message);
+    public abstract Result pin(int x, int y);
+    public abstract Result unpin(int x, int y);
+    public abstract int shake();
+    public abstract void clear();
 
-        } finally {
-            rw.readLock().unlock(); //Releases lock
-        }
+    //Read side returns fully encoded responses so they can be cached and written as is.
+    public abstract byte[] getAllNotes();
+    public abstract byte[] getNotesByColor(int color);
+    public abstract byte[] getNotesAt(int x, int y);
+    public abstract byte[] getAllPins();
+
+    //Snapshot support. capture copies the board while no writer can run and calls atomically at that same instant,
+    //which is where the write-ahead log gets cut. restore loads an image into a fresh board at startup, before logging starts.
+    public abstract BoardImage capture(Runnable atomically);
+    public abstract void restore(BoardImage image);
+
+    //Functions below are small relativly atomic helper functions shared by every storage mode.
+    public boolean isOnBoardPoint(int px, int py){
+        return 0 <= px && px < cfg.board_width() && 0 <= py && py < cfg.board_height();
     }
 
-    public String getNotesByColor(String color){
-        rw.readLock().lock();  //Aquires lock
-        try {
-            //Interate through notes keeping those which align on color
-            List<Note> filtered = new ArrayList<>();
-            for (Note n: notes) if (n.color().equals(color)) filtered.add(n);
+    protected boolean noteFits(int x, int y){
+        return 0 <= x && 0 <= y && x + cfg.note_width() <= cfg.board_width() && y + cfg.note_height() <= cfg.board_height();
+    }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("OK ").append(filtered.size()).append(" RESULTS\n");
-            for (Note n: filtered) sb.append(noteLine(n)).append("\n");
-            sb.append("END\n");
-            return sb.toString();
+    protected boolean isPinInNote(Note n, int px, int py){
+        return n.x() <= px && px < n.x() + cfg.note_width() && n.y() <= py && py < n.y() + cfg.note_height();
+    }
 
-        } finally {
-            rw.readLock().unlock(); //Releases lock
-        }
+    protected boolean isColor(int color){
+        return 0 <= color && color < colorCount();
     }
 
-    public String getNotesAt(int x, int y){
-        rw.readLock().lock();  //Aquires lock
-        try {
-            //Uses helper function to determine all notes which are overlaying the pin locaiton
-            List<Note> filtered = new ArrayList<>();
-            for (Note n: notes) if (isPinInNote(n, x, y)) filtered.add(n);
+    protected int colorCount(){
+        return cfg.colors().size();
+    }
+
+    //Packs a coordinate pair into one primitive key for the hash indexes.
+    protected static long pack(int x, int y){
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("OK ").append(filtered.size()).append(" RESULTS\n");
-            for (Note n: filtered) sb.append(noteLine(n)).append("\n");
-            sb.append("END\n");
-            return sb.toString();
+    //Uniform grid over the board, one cell per note footprint. A note covers at most 2x2 cells so point lookups only check a few notes.
+    protected long cellKey(int px, int py){
+        return pack(px / cfg.note_width(), py / cfg.note_height());
+    }
 
-        } finally {
-            rw.readLock().unlock(); //Releases lock
+    protected void gridCells(Note n, Collection<Long> out){
+        int cx0 = n.x() / cfg.note_width(), cx1 = (n.x() + cfg.note_width() - 1) / cfg.note_width();
+        int cy0 = n.y() / cfg.note_height(), cy1 = (n.y() + cfg.note_height() - 1) / cfg.note_height();
+        for (int cy = cy0; cy <= cy1; cy++){
+            for (int cx = cx0; cx <= cx1; cx++) out.add(pack(cx, cy));
         }
     }
 
-    public String getAllPins(){
-        rw.readLock().lock();  //Aquires lock
-        try { 
-            //Returns list of all found pins
-            Set<Pin> pins = new LinkedHashSet<>();
-            for (Note n: notes) pins.addAll(n.pins());
+    private String noteLine (Note n){
+        return "NOTE " + n.x() + " " + n.y() + " " + cfg.colorName(n.color()) + " " + escapeMessage(n.message());
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("OK ").append(pins.size()).append(" RESULTS\n");
-            for (Pin p: pins) sb.append("PIN ").append(p.x()).append(" ").append(p.y()).append("\n");
+    }
 
-            sb.append("END\n");
-            return sb.toString();
+    private String escapeMessage(String s){
+        return s;
+    }
 
-        } finally {
-            rw.readLock().unlock(); //Releases lock
+    //A GET with any mix of filters, all of which a note has to pass. color is -1, x and y are -1, text is null
+    //for the parts that were not asked for.
+    public record Query(int color, int x, int y, String text){
+        public static final Query ALL = new Query(-1, -1, -1, null);
+        public static Query ofColor(int color) {return new Query(color, -1, -1, null);}
+        public boolean hasColor() {return color >= 0;}
+        public boolean hasPoint() {return x >= 0;}
+        public boolean hasText() {return text != null;}
+    }
+
+    //Where a query starts walking. Every source lists notes in posting order.
+    protected enum Source {POINT, TEXT, COLOR, ALL}
+
+    //Small planner: start from the most selective index the engine has and check the rest of the query per note.
+    //A point only ever sees the few notes in one grid cell so it always wins. Otherwise the shorter of the text
+    //candidates and the color list, for the indexes the engine keeps (a size of -1 means it has none for this query),
+    //else every note.
+    protected static Source plan(Query q, int colorSize, int textSize){
+        if (q.hasPoint()) return Source.POINT;
+        if (textSize >= 0 && (colorSize < 0 || textSize <= colorSize)) return Source.TEXT;
+        if (q.hasColor() && colorSize >= 0) return Source.COLOR;
+        return Source.ALL;
+    }
+
+    //The cheap part of a query, for engines that can test it before fetching the message.
+    protected boolean matches(Query q, int x, int y, int color){
+        if (q.hasColor() && color != q.color()) return false;
+        return !q.hasPoint() || (x <= q.x() && q.x() < x + cfg.note_width() && y <= q.y() && q.y() < y + cfg.note_height());
+    }
+
+    protected static boolean matchesText(Query q, String message){
+        return !q.hasText() || message.contains(q.text());
+    }
+
+    protected boolean matches(Query q, Note n){
+        return matches(q, n.x(), n.y(), n.color()) && matchesText(q, n.message());
+    }
+
+    //Combined filters, answered in one pass. The single filter GETs keep their cached paths.
+    public abstract byte[] query(Query q);
+
+    //One page of GET after=/limit=, or one chunk of a streamed GET. last is the seq to continue after.
+    public record Page(int count, long last, boolean more) {}
+
+    //Writes NOTE lines for at most max live notes with seq above after that pass the query, in posting order.
+    //Engines hold their read lock only for the one page, so a long walk never blocks writers for long.
+    public abstract Page page(long after, Query q, int max, ByteArrayOutputStream out);
+
+    //Shared by the engines that keep Note objects, from wherever their ordered index puts the first note after the cursor.
+    protected Page pageOf(Iterator<Note> from, long after, Query q, int max, ByteArrayOutputStream out){
+        int n = 0;
+        long last = after;
+        while (from.hasNext()){
+            Note note = from.next();
+            if (!matches(q, note)) continue;
+            if (n == max) return new Page(n, last, true);
+            out.writeBytes((noteLine(note) + "\n").getBytes(StandardCharsets.UTF_8));
+            last = note.seq();
+            n++;
+        }
+        return new Page(n, last, false);
+    }
+
+    //Walks the notes for an ascending run of seqs from a TextIndex, starting past the cursor. find maps a seq back to
+    //its note and the run was taken under the same lock, so every seq is still on the board.
+    protected static Iterator<Note> notesOf(long[] seqs, long after, LongFunction<Note> find){
+        int from = Arrays.binarySearch(seqs, after);
+        int start = from >= 0 ? from + 1 : -from - 1;
+        return new Iterator<>(){
+            private int i = start;
+            public boolean hasNext() {return i < seqs.length;}
+            public Note next() {return find.apply(seqs[i++]);}
+        };
+    }
+
+    //Index of the first note with seq above after, in a list kept in posting order.
+    protected static int firstAfter(List<Note> bySeq, long after){
+        int lo = 0, hi = bySeq.size();
+        while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (bySeq.get(mid).seq() <= after) lo = mid + 1;
+            else hi = mid;
         }
+        return lo;
+    }
+
+    //GET ... limit=N after=SEQ: one page as OK <n> RESULTS, with NEXT <seq> on the end when there is more to fetch.
+    public byte[] getPage(long after, Query q, int limit){
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Page p = page(after, q, limit, body);
+        String head = "OK " + p.count() + " RESULTS" + (p.more() ? " NEXT " + p.last() : "") + "\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream(head.length() + body.size() + 4);
+        out.writeBytes(head.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(body.toByteArray());
+        out.writeBytes(END);
+        return out.toByteArray();
+    }
+
+    //GET ... stream: the reply is OK STREAM, then NOTE lines fetched a page at a time as the connection drains them,
+    //then END. Memory stays at one page whatever the board size. Not a point in time view: each note is sent at most
+    //once, but notes posted or shaken while it runs may or may not show up.
+    public Protocol.Chunks stream(long after, Query q, long limit){
+        return new Protocol.Chunks(){
+            private long cursor = after, left = limit;
+            private boolean done;
+            private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+            @Override
+            public byte[] next(){
+                if (done) return null;
+                buf.reset();
+                Page p = page(cursor, q, (int) Math.min(STREAM_PAGE, left), buf);
+                cursor = p.last();
+                left -= p.count();
+                if (!p.more() || left == 0){
+                    done = true;
+                    buf.writeBytes(END);
+                }
+                return buf.toByteArray();
+            }
+        };
+    }
+
+    protected byte[] renderNotes(Collection<Note> list){
+        //Use string builder to track all notes and display neatly.
+        StringBuilder sb = new StringBuilder();
+        sb.append("OK ").append(list.size()).append(" RESULTS\n");
+        for (Note n: list) sb.append(noteLine(n)).append("\n");
+        sb.append("END\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
     }
 
+    protected byte[] renderPins(LongLinkedSet pins){
+        StringBuilder sb = new StringBuilder();
+        sb.append("OK ").append(pins.size()).append(" RESULTS\n");
+        pins.forEach(p -> sb.append("PIN ").append((int) (p >> 32)).append(" ").append((int) p).append("\n"));
+        sb.append("END\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-}
\ No newline at end of file
+    protected byte[] renderPins(Collection<Pin> pins){
+        StringBuilder sb = new StringBuilder();
+        sb.append("OK ").append(pins.size()).append(" RESULTS\n");
+        for (Pin p: pins) sb.append("PIN ").append(p.x()).append(" ").append(p.y()).append("\n");
+        sb.append("END\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
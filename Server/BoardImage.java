@@ -0,0 +1,191 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+public class BoardImage {
+    //Engine neutral copy of a whole board: live notes in posting order with their pins, every pin in placement order,
+    //and the note counter. Engines fill one while holding their lock just long enough to copy references,
+    //the slow part (encoding and writing the file) happens afterwards with no lock held.
+    //Also records the last write-ahead log segment the image already includes, so startup only replays newer segments.
+
+    private static final int MAGIC = 0x4E424253; //"NBBS"
+    private static final int FORMAT = 1;
+    private static final long[] NO_PINS = new long[0];
+
+    private int count;
+    private int[] xs, ys, colors;
+    private long[] seqs;
+    private String[] messages;
+    private long[][] notePins;
+    private long[] pins = NO_PINS;
+    private long seq;
+    private long segment = -1;
+
+    public BoardImage(int expected){
+        int cap = Math.max(16, expected);
+        xs = new int[cap];
+        ys = new int[cap];
+        colors = new int[cap];
+        seqs = new long[cap];
+        messages = new String[cap];
+        notePins = new long[cap][];
+    }
+
+    public void addNote(int x, int y, int color, String message, long seq, long[] pins){
+        if (count == xs.length){
+            int cap = count * 2;
+            xs = Arrays.copyOf(xs, cap);
+            ys = Arrays.copyOf(ys, cap);
+            colors = Arrays.copyOf(colors, cap);
+            seqs = Arrays.copyOf(seqs, cap);
+            messages = Arrays.copyOf(messages, cap);
+            notePins = Arrays.copyOf(notePins, cap);
+        }
+        xs[count] = x;
+        ys[count] = y;
+        colors[count] = color;
+        messages[count] = message;
+        seqs[count] = seq;
+        notePins[count] = pins.length == 0 ? NO_PINS : pins;
+        count++;
+    }
+
+    public void setPins(long[] pins) {this.pins = pins;}
+    public void setSeq(long seq) {this.seq = seq;}
+    public void setSegment(long segment) {this.segment = segment;}
+
+    public int count() {return count;}
+    public int x(int i) {return xs[i];}
+    public int y(int i) {return ys[i];}
+    public int color(int i) {return colors[i];}
+    public String message(int i) {return messages[i];}
+    public long seq(int i) {return seqs[i];}
+    public long[] pins(int i) {return notePins[i];}
+    public long[] pins() {return pins;}
+    public long seq() {return seq;}
+    public long segment() {return segment;}
+
+    //Writes the image next to path and renames it into place, so a crash mid-write leaves the previous snapshot intact.
+    //Layout: header, color names, notes, board pins, then a crc32c of everything before it.
+    public void write(Path path, Protocol.Config cfg) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())){
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 20));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(segment);
+            out.writeLong(seq);
+            out.writeInt(cfg.colors().size());
+            for (String c: cfg.colors()) writeBytes(out, c.getBytes(StandardCharsets.UTF_8));
+            out.writeInt(count);
+            for (int i = 0; i < count; i++){
+                out.writeInt(xs[i]);
+                out.writeInt(ys[i]);
+                out.writeInt(colors[i]);
+                out.writeLong(seqs[i]);
+                writeBytes(out, messages[i].getBytes(StandardCharsets.UTF_8));
+                writeLongs(out, notePins[i]);
+            }
+            writeLongs(out, pins);
+            out.flush();
+            file.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+            file.getChannel().force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //The rename lives in the directory, which has to reach disk before the log segments behind the image are
+        //deleted. Otherwise a crash could keep the deletes but lose the rename, and with it both copies of the data.
+        syncDirectory(path);
+    }
+
+    //Fsyncs the directory holding file, so creates, renames and deletes in it survive a crash.
+    //Windows can not open a directory this way, there the file system already journals them.
+    static void syncDirectory(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e){
+            return;
+        }
+        try (ch){
+            ch.force(true);
+        }
+    }
+
+    //Reads an image written by write. Notes whose color is no longer configured, or that no longer fit the board,
+    //are dropped along with pins nothing holds any more. Returns null if there is no snapshot, fails if it is damaged.
+    public static BoardImage read(Path path, Protocol.Config cfg) throws IOException {
+        if (!Files.exists(path)) return null;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = ch.size();
+            if (size < 4 || size > Integer.MAX_VALUE) throw new IOException("snapshot " + path + " has a bad size");
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            crc.update(b.slice(0, (int) size - 4));
+            if ((int) crc.getValue() != b.getInt((int) size - 4)) throw new IOException("snapshot " + path + " is corrupt");
+            if (b.getInt() != MAGIC || b.getInt() != FORMAT) throw new IOException("snapshot " + path + " has an unknown format");
+
+            long segment = b.getLong();
+            long seq = b.getLong();
+            int[] colorMap = new int[b.getInt()];
+            for (int c = 0; c < colorMap.length; c++){
+                Integer ord = cfg.colorOrdinals().get(readString(b));
+                colorMap[c] = ord == null ? -1 : ord;
+            }
+
+            int n = b.getInt();
+            BoardImage img = new BoardImage(n);
+            img.setSegment(segment);
+            img.setSeq(seq);
+            LongHashSet held = new LongHashSet();
+            for (int i = 0; i < n; i++){
+                int x = b.getInt(), y = b.getInt(), color = b.getInt();
+                long noteSeq = b.getLong();
+                String message = readString(b);
+                long[] notePins = readLongs(b);
+                int ord = color < colorMap.length ? colorMap[color] : -1;
+                boolean fits = 0 <= x && 0 <= y && x + cfg.note_width() <= cfg.board_width() && y + cfg.note_height() <= cfg.board_height();
+                if (ord < 0 || !fits) continue;
+                img.addNote(x, y, ord, message, noteSeq, notePins);
+                for (long p: notePins) held.add(p);
+            }
+            long[] pins = readLongs(b);
+            int k = 0;
+            for (long p: pins) if (held.contains(p)) pins[k++] = p;
+            img.setPins(k == pins.length ? pins : Arrays.copyOf(pins, k));
+            return img;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] v) throws IOException {
+        out.writeInt(v.length);
+        for (long l: v) out.writeLong(l);
+    }
+
+    private static String readString(ByteBuffer b){
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long[] readLongs(ByteBuffer b){
+        int n = b.getInt();
+        if (n == 0) return NO_PINS;
+        long[] v = new long[n];
+        b.asLongBuffer().get(v);
+        b.position(b.position() + n * 8);
+        return v;
+    }
+}
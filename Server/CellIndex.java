@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+public class CellIndex {
+    //Primitive grid index from a packed cell to the slots whose notes cover it. An open addressing table maps the cell to
+    //the newest entry of its chain, and the entries (slot, next) live in two flat arrays.
+    //Entries are only ever added, owners rebuild the whole index when slots move.
+    private static final long EMPTY = Long.MIN_VALUE;
+    private long[] keys = newKeys(64);
+    private int[] heads = new int[64];
+    private int cells;
+    private int[] slots = new int[64], next = new int[64];
+    private int entries;
+
+    private static long[] newKeys(int cap){
+        long[] k = new long[cap];
+        Arrays.fill(k, EMPTY);
+        return k;
+    }
+
+    private static int mix(long k){
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //First entry of the cell's chain, or -1. Chains run newest slot first.
+    int head(long cell){
+        int mask = keys.length - 1;
+        for (int i = mix(cell) & mask; keys[i] != EMPTY; i = (i + 1) & mask){
+            if (keys[i] == cell) return heads[i];
+        }
+        return -1;
+    }
+
+    int slot(int e) {return slots[e];}
+    int next(int e) {return next[e];}
+
+    void add(long cell, int slot){
+        if (entries == slots.length){
+            slots = Arrays.copyOf(slots, entries * 2);
+            next = Arrays.copyOf(next, entries * 2);
+        }
+        int mask = keys.length - 1;
+        int i = mix(cell) & mask;
+        while (keys[i] != EMPTY && keys[i] != cell) i = (i + 1) & mask;
+        slots[entries] = slot;
+        if (keys[i] == EMPTY){
+            keys[i] = cell;
+            next[entries] = -1;
+            cells++;
+        } else {
+            next[entries] = heads[i];
+        }
+        heads[i] = entries++;
+        if (cells * 2 > keys.length) grow();
+    }
+
+    void clear(){
+        Arrays.fill(keys, EMPTY);
+        cells = entries = 0;
+    }
+
+    private void grow(){
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = newKeys(oldKeys.length * 2);
+        heads = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldKeys[j] == EMPTY) continue;
+            int i = mix(oldKeys[j]) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            heads[i] = oldHeads[j];
+        }
+    }
+}
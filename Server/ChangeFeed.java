@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ChangeFeed {
+    //Fan out of board changes to connections that sent SUBSCRIBE. Engines publish from inside their write lock, so publishing
+    //never blocks: each subscriber has a bounded queue, and one that falls behind has its whole backlog coalesced into a
+    //single EVENT RESYNC line telling the client to catch up with GET since=. Writers never wait on a slow socket.
+    static final int QUEUE_LIMIT = 1024;
+    private static final byte[] RESYNC = "EVENT RESYNC\n".getBytes(StandardCharsets.UTF_8);
+
+    //Iterated on every change, changed only on (un)subscribe
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    //Lets engines skip encoding the event line when nobody listens.
+    public boolean isEmpty() {return subscribers.isEmpty();}
+
+    //onReady runs whenever an event lands in an empty queue, null when the consumer blocks in take instead.
+    public Subscriber subscribe(Runnable onReady){
+        Subscriber s = new Subscriber(onReady);
+        subscribers.add(s);
+        return s;
+    }
+
+    public void unsubscribe(Subscriber s){
+        subscribers.remove(s);
+        s.close();
+    }
+
+    public void publish(byte[] event){
+        for (Subscriber s: subscribers) s.offer(event);
+    }
+
+    //A ReentrantLock rather than a monitor: a virtual thread parked in take on a monitor would pin its carrier thread,
+    //and enough idle subscribers would then starve every other virtual thread.
+    public static final class Subscriber {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition ready = lock.newCondition();
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private final Runnable onReady;
+        private boolean resyncQueued; //Everything until the RESYNC is taken is covered by the client's next GET
+        private boolean closed;
+
+        private Subscriber(Runnable onReady){
+            this.onReady = onReady;
+        }
+
+        private void offer(byte[] event){
+            boolean wasEmpty;
+            lock.lock(); //Aquires lock
+            try {
+                if (closed || resyncQueued) return;
+                wasEmpty = queue.isEmpty();
+                if (queue.size() >= QUEUE_LIMIT){
+                    queue.clear();
+                    queue.add(RESYNC);
+                    resyncQueued = true;
+                } else queue.add(event);
+                if (wasEmpty) ready.signalAll();
+            } finally {
+                lock.unlock(); //Releases lock
+            }
+            if (wasEmpty && onReady != null) onReady.run();
+        }
+
+        //Next event, or null if none is waiting.
+        public byte[] poll(){
+            lock.lock(); //Aquires lock
+            try {
+                byte[] e = queue.poll();
+                if (e == RESYNC) resyncQueued = false;
+                return e;
+            } finally {
+                lock.unlock(); //Releases lock
+            }
+        }
+
+        //Waits for the next event, null once the subscription is closed.
+        public byte[] take() throws InterruptedException {
+            lock.lock(); //Aquires lock
+            try {
+                while (queue.isEmpty() && !closed) ready.await();
+                return closed ? null : poll();
+            } finally {
+                lock.unlock(); //Releases lock
+            }
+        }
+
+        private void close(){
+            lock.lock(); //Aquires lock
+            try {
+                closed = true;
+                queue.clear();
+                ready.signalAll();
+            } finally {
+                lock.unlock(); //Releases lock
+            }
+        }
+    }
+}
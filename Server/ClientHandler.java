@@ -1,37 +1,88 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientHandler implements Runnable{
+    //Replies are buffered up to this many bytes. The buffer also flushes by itself once it fills.
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
     private final Socket socket;
     private final Board board;
     private final Protocol.Config cfg;
+    //Starts the thread that writes pushed events, the server hands out the same kind of thread it runs connections on
+    private final Executor helpers;
+
+    private ChangeFeed.Subscriber events;
+    //Replies and pushed events share the stream, each reply or page is written whole while holding this. Not a monitor, a virtual
+    //thread blocked in a socket write while holding one would pin its carrier thread. Fair, so the events thread waiting
+    //on it gets its turn between the pages of a stream instead of the reply loop taking it straight back.
+    private final ReentrantLock outLock = new ReentrantLock(true);
 
     public ClientHandler(Socket socket, Board board, Protocol.Config cfg){
+        this(socket, board, cfg, ClientHandler::daemon);
+    }
+
+    public ClientHandler(Socket socket, Board board, Protocol.Config cfg, Executor helpers){
         this.socket = socket;
         this.board = board;
         this.cfg = cfg;
+        this.helpers = helpers;
+    }
+
+    //Default helper thread: a plain daemon thread, which never keeps the server process alive.
+    static void daemon(Runnable task){
+        Thread t = new Thread(task, "events");
+        t.setDaemon(true);
+        t.start();
     }
 
     @Override
     public void run(){
         try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            InputStream rawIn = socket.getInputStream();
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD);
         ){
-            out.write(Protocol.handshake(cfg));
+            LineReader in = new LineReader(rawIn);
+            out.write(Protocol.handshake(cfg).getBytes(StandardCharsets.UTF_8));
             out.flush();
 
-            String line;
+            CharSequence line;
             while ((line = in.readLine()) != null) {
                 Protocol.Response resp = Protocol.handleLine(line, board, cfg);
-                out.write(resp.text());
+                //Replies and pushed events share the stream, each is written whole under the stream's lock
+                outLock.lock(); //Aquires lock
+                try {
+                    out.write(resp.bytes());
+                    //A streamed reply is written page by page as the board hands them out, the buffer flushes as it fills.
+                    //The lock is let go between pages so pushed events are not held back for the whole transfer.
+                    if (resp.more() != null){
+                        byte[] chunk;
+                        while ((chunk = resp.more().next()) != null){
+                            outLock.unlock(); //Releases lock
+                            outLock.lock(); //Aquires lock
+                            out.write(chunk);
+                        }
+                    }
+                    if (resp.closeAfterWrite()) break;
+                    //Pipelined commands already waiting are answered first, one flush covers the whole batch
+                    if (!in.hasLine()) out.flush();
+                } finally {
+                    outLock.unlock(); //Releases lock
+                }
+                if (resp.subscribe() && events == null) startEvents(out);
+            }
+            outLock.lock(); //Aquires lock
+            try {
                 out.flush();
-                if (resp.closeAfterWrite()) break;
+            } finally {
+                outLock.unlock(); //Releases lock
             }
         } catch (Exception e){
             // Some Error Message
         } finally {
+            if (events != null) board.feed().unsubscribe(events);
             try {
                 socket.close();
             } catch (IOException ignored) {}
@@ -39,5 +90,24 @@ public class ClientHandler implements Runnable{
         }
     }
 
-
-}
\ No newline at end of file
+    //Subscribed connections get a second thread that blocks on the event queue and writes whatever has piled up
+    //in one flush. A stalled socket only stalls this thread, the queue behind it coalesces instead of growing.
+    private void startEvents(OutputStream out){
+        events = board.feed().subscribe(null);
+        ChangeFeed.Subscriber sub = events;
+        helpers.execute(() -> {
+            try {
+                byte[] e;
+                while ((e = sub.take()) != null) {
+                    outLock.lock(); //Aquires lock
+                    try {
+                        do out.write(e); while ((e = sub.poll()) != null);
+                        out.flush();
+                    } finally {
+                        outLock.unlock(); //Releases lock
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {}
+        });
+    }
+}
@@ -0,0 +1,114 @@
+public final class CommandTokens {
+    //Single pass whitespace tokenizer over one command line. It only records where tokens start and end,
+    //so parsing a command makes no substrings, lowercased copies or regex matches.
+    //One instance is reused per thread through Protocol, never share an instance between threads.
+
+    //Handlers never look past the fifth token (POST message start), the rest are only counted.
+    private static final int KEPT = 8;
+
+    private CharSequence line;
+    private int count;
+    private final int[] starts = new int[KEPT];
+    private final int[] ends = new int[KEPT];
+
+    public CommandTokens reset(CharSequence line){
+        this.line = line;
+        this.count = 0;
+        int n = line.length();
+        int i = 0;
+        while (i < n){
+            while (i < n && Character.isWhitespace(line.charAt(i))) i++;
+            if (i == n) break;
+            int s = i;
+            while (i < n && !Character.isWhitespace(line.charAt(i))) i++;
+            if (count < KEPT){
+                starts[count] = s;
+                ends[count] = i;
+            }
+            count++;
+        }
+        return this;
+    }
+
+    public int count() {return count;}
+    public int start(int t) {return starts[t];}
+    public int end(int t) {return ends[t];}
+    public CharSequence line() {return line;}
+
+    //Case-insensitive comparison of a token against a lowercase keyword.
+    public boolean is(int t, String lower){
+        return t < count && regionEquals(starts[t], ends[t], lower);
+    }
+
+    public boolean startsWith(int t, String lower){
+        return t < count && ends[t] - starts[t] >= lower.length() && regionEquals(starts[t], starts[t] + lower.length(), lower);
+    }
+
+    public boolean regionEquals(int from, int to, String lower){
+        if (to - from != lower.length()) return false;
+        for (int i = 0; i < lower.length(); i++){
+            if (Character.toLowerCase(line.charAt(from + i)) != lower.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    //The text in [from, to) lowercased the same way regionEquals compares it, for lookups keyed by lowercase text.
+    public String lower(int from, int to){
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) sb.append(Character.toLowerCase(line.charAt(i)));
+        return sb.toString();
+    }
+
+    //Returns the first char index in [from, to) equal to c, or -1.
+    public int indexOf(char c, int from, int to){
+        for (int i = from; i < to; i++) if (line.charAt(i) == c) return i;
+        return -1;
+    }
+
+    //Same rules as Integer.parseInt (optional sign, no overflow) but rejects negatives. Returns -1 when invalid.
+    public int parseNonNegInt(int from, int to){
+        if (from >= to) return -1;
+        boolean negative = false;
+        char first = line.charAt(from);
+        if (first == '+' || first == '-'){
+            negative = first == '-';
+            if (++from == to) return -1;
+        }
+        long v = 0;
+        for (int i = from; i < to; i++){
+            int d = Character.digit(line.charAt(i), 10);
+            if (d < 0) return -1;
+            v = v * 10 + d;
+            if (v > Integer.MAX_VALUE + 1L) return -1;
+        }
+        if (negative) return v == 0 ? 0 : -1;
+        return v > Integer.MAX_VALUE ? -1 : (int) v;
+    }
+
+    //Plain digits only, for the long counters clients echo back. Returns -1 when invalid or too big.
+    public long parseNonNegLong(int from, int to){
+        if (from >= to) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++){
+            int d = Character.digit(line.charAt(i), 10);
+            if (d < 0 || v > (Long.MAX_VALUE - d) / 10) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    public int parseNonNegInt(int t){
+        return t < count ? parseNonNegInt(starts[t], ends[t]) : -1;
+    }
+
+    //Text from the start of token t up to the end of the last token, i.e. the rest of the line trimmed.
+    public String restFrom(int t){
+        return line.subSequence(starts[t], lastEnd()).toString();
+    }
+
+    private int lastEnd(){
+        int n = line.length();
+        while (n > 0 && (line.charAt(n - 1) <= ' ' || Character.isWhitespace(line.charAt(n - 1)))) n--;
+        return n;
+    }
+}
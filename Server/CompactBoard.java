@@ -0,0 +1,466 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class CompactBoard extends Board {
+    //Structure of arrays storage mode. There are no Note objects here, slot i of every column array is one note and the
+    //live notes fill slots [0, count) in posting order. Messages sit in a MessagePool and pins are packed (x << 32 | y) longs,
+    //so a note costs a few dozen bytes and whole board scans walk flat primitive arrays. One rw lock guards it all, like LockedBoard.
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+
+    private int count;
+    private int[] xs = new int[64], ys = new int[64], colors = new int[64], messages = new int[64];
+    private long[] seqs = new long[64];
+    //Pins holding up each note, pinCounts[i] of them in use. Stays null until the note is first pinned.
+    private long[][] notePins = new long[64][];
+    private int[] pinCounts = new int[64];
+    private long seq = 0;
+    private int unpinnedCount;
+
+    private final MessagePool pool = new MessagePool();
+    //Grid cells keyed by cellKey, each a chain of slot numbers. Shake moves slots, so it rebuilds the grid.
+    private final CellIndex grid = new CellIndex();
+    //Every pin on the board in the order it was placed.
+    private final LongLinkedSet pins = new LongLinkedSet();
+    //Message tokens to note seqs, for GET refersTo=. Keyed by seq rather than slot so a shake does not have to rebuild it.
+    private final TextIndex text = new TextIndex();
+
+    //Same versioned response cache as LockedBoard.
+    private long version = 0;
+    private record Cached(long version, byte[] bytes) {}
+    private static final int CACHE_ALL = 0, CACHE_PINS = 1, CACHE_COLOR = 2;
+    private final Cached[] cache;
+    private final byte[][] colorNames;
+
+    public CompactBoard (Protocol.Config cfg){
+        super(cfg);
+        this.cache = new Cached[CACHE_COLOR + colorCount()];
+        this.colorNames = new byte[colorCount()][];
+        for (int i = 0; i < colorCount(); i++) colorNames[i] = cfg.colorName(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean covers(int slot, int px, int py){
+        return xs[slot] <= px && px < xs[slot] + cfg.note_width() && ys[slot] <= py && py < ys[slot] + cfg.note_height();
+    }
+
+    //A note starting at (x, y) would sit in the cell holding that point, so that chain is the only place to look.
+    private boolean hasCompleteOverlap(int x, int y){
+        for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+            int i = grid.slot(e);
+            if (xs[i] == x && ys[i] == y) return true;
+        }
+        return false;
+    }
+
+    private void gridAdd(int slot){
+        int cx0 = xs[slot] / cfg.note_width(), cx1 = (xs[slot] + cfg.note_width() - 1) / cfg.note_width();
+        int cy0 = ys[slot] / cfg.note_height(), cy1 = (ys[slot] + cfg.note_height() - 1) / cfg.note_height();
+        for (int cy = cy0; cy <= cy1; cy++){
+            for (int cx = cx0; cx <= cx1; cx++) grid.add(pack(cx, cy), slot);
+        }
+    }
+
+    private void ensureCapacity(){
+        if (count < xs.length) return;
+        int cap = xs.length * 2;
+        xs = Arrays.copyOf(xs, cap);
+        ys = Arrays.copyOf(ys, cap);
+        colors = Arrays.copyOf(colors, cap);
+        messages = Arrays.copyOf(messages, cap);
+        seqs = Arrays.copyOf(seqs, cap);
+        notePins = Arrays.copyOf(notePins, cap);
+        pinCounts = Arrays.copyOf(pinCounts, cap);
+    }
+
+    //Adds p to a note's pins. Returns false if the note already had it.
+    private boolean addPin(int slot, long p){
+        long[] ps = notePins[slot];
+        int n = pinCounts[slot];
+        for (int k = 0; k < n; k++) if (ps[k] == p) return false;
+        if (ps == null) ps = notePins[slot] = new long[2];
+        else if (n == ps.length) ps = notePins[slot] = Arrays.copyOf(ps, n * 2);
+        ps[n] = p;
+        if (pinCounts[slot]++ == 0) unpinnedCount--;
+        return true;
+    }
+
+    private void removePin(int slot, long p){
+        long[] ps = notePins[slot];
+        int n = pinCounts[slot];
+        for (int k = 0; k < n; k++){
+            if (ps[k] != p) continue;
+            ps[k] = ps[n - 1];
+            if (--pinCounts[slot] == 0) unpinnedCount++;
+            return;
+        }
+    }
+
+    //Returns the cached response for a slot if nothing changed since it was built. Caller holds the read lock.
+    private byte[] cached(int slot){
+        Cached c = cache[slot];
+        return c != null && c.version() == version ? c.bytes() : null;
+    }
+
+    private byte[] remember(int slot, byte[] bytes){
+        cache[slot] = new Cached(version, bytes);
+        return bytes;
+    }
+
+    @Override
+    public Result post(int x, int y, int color, String message){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            //Determines if note is in valid position
+            if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
+            if (hasCompleteOverlap(x, y)) return Result.COMPLETE_OVERLAP;
+            //If so fills in the next slot of every column
+            ensureCapacity();
+            int i = count++;
+            xs[i] = x;
+            ys[i] = y;
+            colors[i] = color;
+            messages[i] = pool.intern(message);
+            seqs[i] = ++seq;
+            notePins[i] = null;
+            pinCounts[i] = 0;
+            unpinnedCount++;
+            gridAdd(i);
+            text.add(seqs[i], message);
+            logPost(x, y, color, message);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result pin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            boolean pinnedAny = false;
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (covers(i, x, y) && addPin(i, p)) pinnedAny = true;
+            }
+            if (!pinnedAny) return Result.NO_NOTE_AT_COORDINATE;
+            pins.add(p);
+            logPin(x, y);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result unpin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            if (!pins.remove(p)) return Result.PIN_NOT_FOUND;
+            //Only notes covering the point can hold the pin
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (covers(i, x, y)) removePin(i, p);
+            }
+            logUnpin(x, y);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public int shake(){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            if (unpinnedCount == 0) return 0;
+            //Slide every pinned note down over the removed ones, keeping posting order
+            LongHashSet gone = new LongHashSet(unpinnedCount);
+            List<String> goneMessages = new ArrayList<>(unpinnedCount);
+            int w = 0;
+            for (int r = 0; r < count; r++){
+                if (pinCounts[r] == 0){
+                    gone.add(seqs[r]);
+                    goneMessages.add(pool.text(messages[r]));
+                    pool.release(messages[r]);
+                    continue;
+                }
+                xs[w] = xs[r];
+                ys[w] = ys[r];
+                colors[w] = colors[r];
+                messages[w] = messages[r];
+                seqs[w] = seqs[r];
+                notePins[w] = notePins[r];
+                pinCounts[w] = pinCounts[r];
+                w++;
+            }
+            int removed = count - w;
+            Arrays.fill(notePins, w, count, null);
+            count = w;
+            unpinnedCount = 0;
+            grid.clear();
+            for (int i = 0; i < count; i++) gridAdd(i);
+            text.removeAll(gone, goneMessages);
+            logShake(removed);
+            version++;
+            return removed;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void clear(){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            Arrays.fill(notePins, 0, count, null);
+            count = 0;
+            unpinnedCount = 0;
+            pool.clear();
+            grid.clear();
+            pins.clear();
+            text.clear();
+            logClear();
+            version++;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public BoardImage capture(Runnable atomically){
+        rw.readLock().lock(); //Aquires lock, enough to keep writers out while the columns are copied
+        try {
+            atomically.run();
+            BoardImage img = new BoardImage(count);
+            for (int i = 0; i < count; i++){
+                long[] ps = pinCounts[i] == 0 ? new long[0] : Arrays.copyOf(notePins[i], pinCounts[i]);
+                img.addNote(xs[i], ys[i], colors[i], pool.text(messages[i]), seqs[i], ps);
+            }
+            img.setPins(pins.toArray());
+            img.setSeq(seq);
+            return img;
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void restore(BoardImage img){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            for (int k = 0; k < img.count(); k++){
+                ensureCapacity();
+                int i = count++;
+                xs[i] = img.x(k);
+                ys[i] = img.y(k);
+                colors[i] = img.color(k);
+                messages[i] = pool.intern(img.message(k));
+                seqs[i] = img.seq(k);
+                long[] ps = img.pins(k);
+                notePins[i] = ps.length == 0 ? null : ps.clone();
+                pinCounts[i] = ps.length;
+                if (ps.length == 0) unpinnedCount++;
+                gridAdd(i);
+                text.add(seqs[i], img.message(k));
+            }
+            for (long p: img.pins()) pins.add(p);
+            seq = img.seq();
+            version++;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getAllNotes(){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            byte[] hit = cached(CACHE_ALL);
+            return hit != null ? hit : remember(CACHE_ALL, renderSlots(null, count));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesByColor(int color){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            if (!isColor(color)) return renderSlots(new int[0], 0);
+            byte[] hit = cached(CACHE_COLOR + color);
+            if (hit != null) return hit;
+            //Straight scan of the color column
+            int[] found = new int[16];
+            int n = 0;
+            for (int i = 0; i < count; i++){
+                if (colors[i] != color) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            return remember(CACHE_COLOR + color, renderSlots(found, n));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesAt(int x, int y){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            int[] found = new int[8];
+            int n = 0;
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (!covers(i, x, y)) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            //Chains run newest first, responses list notes in posting order
+            for (int a = 0, b = n - 1; a < b; a++, b--){
+                int t = found[a];
+                found[a] = found[b];
+                found[b] = t;
+            }
+            return renderSlots(found, n);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Page page(long after, Query q, int max, ByteArrayOutputStream out){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            if (plan(q, -1, textSize(q)) == Source.TEXT){
+                //Only the candidates past the cursor, each found back in the seq column
+                long[] c = text.candidates(q.text());
+                int k = Arrays.binarySearch(c, after);
+                int n = 0;
+                long last = after;
+                for (k = k < 0 ? -k - 1 : k + 1; k < c.length; k++){
+                    int i = slotOfSeq(c[k]);
+                    if (!matches(q, i)) continue;
+                    if (n == max) return new Page(n, last, true);
+                    writeNote(out, i);
+                    last = seqs[i];
+                    n++;
+                }
+                return new Page(n, last, false);
+            }
+            //The seq column is ascending, find the cursor then scan the color column from there
+            int i = Arrays.binarySearch(seqs, 0, count, after);
+            i = i < 0 ? -i - 1 : i + 1;
+            int n = 0;
+            long last = after;
+            for (; i < count; i++){
+                if (!matches(q, i)) continue;
+                if (n == max) return new Page(n, last, true);
+                writeNote(out, i);
+                last = seqs[i];
+                n++;
+            }
+            return new Page(n, last, false);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] query(Query q){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            int[] found = new int[16];
+            int n = 0;
+            //No color list here, so without a point or search text it is a scan of the columns
+            Source source = plan(q, -1, textSize(q));
+            if (source == Source.POINT){
+                for (int e = grid.head(cellKey(q.x(), q.y())); e >= 0; e = grid.next(e)){
+                    int i = grid.slot(e);
+                    if (!matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+                //Chains run newest first
+                Arrays.sort(found, 0, n);
+            } else if (source == Source.TEXT){
+                for (long c: text.candidates(q.text())){
+                    int i = slotOfSeq(c);
+                    if (!matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+            } else {
+                for (int i = 0; i < count; i++){
+                    if (!matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+            }
+            return renderSlots(found, n);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    private int textSize(Query q){
+        return q.hasText() ? text.estimate(q.text()) : -1;
+    }
+
+    //Slot of a seq the text index handed out, the seq column is ascending.
+    private int slotOfSeq(long s){
+        return Arrays.binarySearch(seqs, 0, count, s);
+    }
+
+    //Columns first, the message is only decoded when everything else passed.
+    private boolean matches(Query q, int i){
+        return matches(q, xs[i], ys[i], colors[i]) && (!q.hasText() || matchesText(q, pool.text(messages[i])));
+    }
+
+    @Override
+    public byte[] getAllPins(){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            byte[] hit = cached(CACHE_PINS);
+            return hit != null ? hit : remember(CACHE_PINS, renderPins(pins));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    //Encodes notes straight from the columns, same bytes as Board.renderNotes. A null slot list means slots [0, n).
+    private byte[] renderSlots(int[] slots, int n){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + n * 48);
+        header(out, n);
+        for (int k = 0; k < n; k++) writeNote(out, slots == null ? k : slots[k]);
+        ascii(out, "END\n");
+        return out.toByteArray();
+    }
+
+    private void writeNote(ByteArrayOutputStream out, int i){
+        ascii(out, "NOTE ");
+        ascii(out, Integer.toString(xs[i]));
+        out.write(' ');
+        ascii(out, Integer.toString(ys[i]));
+        out.write(' ');
+        out.writeBytes(colorNames[colors[i]]);
+        out.write(' ');
+        pool.writeTo(messages[i], out);
+        out.write('\n');
+    }
+
+    private static void header(ByteArrayOutputStream out, int n){
+        ascii(out, "OK ");
+        ascii(out, Integer.toString(n));
+        ascii(out, " RESULTS\n");
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s){
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class LineReader {
+    //Byte level line framer for the blocking handler. Unlike BufferedReader it can say whether a whole line is
+    //already buffered, which lets the handler keep answering pipelined commands before it flushes.
+    //Lines end at '\n' with an optional '\r' before it, and are handed out as AsciiLine views, not decoded Strings.
+
+    //Same limit as the NIO server, a client that never sends a newline cannot grow the buffer forever.
+    private static final int MAX_LINE = 1 << 20;
+
+    private final InputStream in;
+    private byte[] buf = new byte[8192];
+    private int start, end;
+    private int scanned; //Bytes from start already known not to contain '\n'
+    private boolean eof;
+    private final AsciiLine view = new AsciiLine();
+
+    public LineReader(InputStream in){
+        this.in = in;
+    }
+
+    //Returns the next line without its terminator, or null at end of stream. Blocks until a full line or EOF.
+    //The returned view is overwritten by the next call.
+    public CharSequence readLine() throws IOException {
+        while (true) {
+            int nl = findNewline();
+            if (nl >= 0) return take(nl, nl + 1);
+            if (eof || !fill(true)){
+                //Like BufferedReader, a trailing line without a newline still counts at end of stream
+                return start < end ? take(end, end) : null;
+            }
+        }
+    }
+
+    //True if a complete line can be returned without waiting on the socket. Pulls in bytes that have already arrived.
+    public boolean hasLine() throws IOException {
+        if (findNewline() >= 0) return true;
+        while (!eof && in.available() > 0){
+            if (!fill(false)) break;
+            if (findNewline() >= 0) return true;
+        }
+        return eof && start < end;
+    }
+
+    private int findNewline(){
+        for (int i = start + scanned; i < end; i++){
+            if (buf[i] == '\n') return i;
+        }
+        scanned = end - start;
+        return -1;
+    }
+
+    private CharSequence take(int lineEnd, int next){
+        int to = lineEnd;
+        if (to > start && buf[to - 1] == '\r') to--;
+        AsciiLine line = view.set(buf, start, to - start);
+        start = next;
+        scanned = 0;
+        return line;
+    }
+
+    //Reads more bytes after the buffered ones. Returns false at end of stream.
+    private boolean fill(boolean block) throws IOException {
+        if (end == buf.length){
+            if (start > 0){
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            } else {
+                if (buf.length >= MAX_LINE) throw new IOException("line too long");
+                buf = Arrays.copyOf(buf, Math.min(MAX_LINE, buf.length * 2));
+            }
+        }
+        int want = buf.length - end;
+        if (!block) want = Math.min(want, Math.max(1, in.available()));
+        int n = in.read(buf, end, want);
+        if (n < 0){
+            eof = true;
+            return false;
+        }
+        end += n;
+        return true;
+    }
+}
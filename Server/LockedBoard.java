@@ -0,0 +1,325 @@
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LockedBoard extends Board {
+    //Default storage mode. Every operation runs under one read/write lock over mutable indexes.
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock(); //To prevent race conditions have a simple rw lock.
+    
+    private final List <Note> notes = new ArrayList<>();
+    private long seq = 0;
+
+    //Grid cells keyed by cellKey. Only occupied cells are stored, so huge boards with tiny notes do not allocate a cell per slot.
+    private final Map<Long, List<Note>> grid = new HashMap<>();
+    //Packed (x, y) origins of every note, so complete overlap is a constant time lookup.
+    private final LongHashSet origins = new LongHashSet();
+    //Notes of each color in insertion order, indexed by the color's ordinal.
+    private final List<List<Note>> byColor = new ArrayList<>();
+    //Every pin on the board in the order it was placed, packed like origins. The notes a pin holds up are the ones in its cell that have it.
+    private final LongLinkedSet pins = new LongLinkedSet();
+    //Notes with no pins, which are exactly the ones a shake removes.
+    private final Set<Note> unpinned = new LinkedHashSet<>();
+    //Message tokens to note seqs, for GET refersTo=.
+    private final TextIndex text = new TextIndex();
+
+    //Bumped by every mutation that changes what a GET would return. Only written under the write lock.
+    private long version = 0;
+    //Encoded GET responses tagged with the version they were built at. Slot 0 is GET, 1 is GET PINS, 2+ is GET color= by ordinal.
+    //Readers fill slots while holding the read lock, the record is immutable so a racing reader at worst rebuilds the same bytes.
+    private record Cached(long version, byte[] bytes) {}
+    private static final int CACHE_ALL = 0, CACHE_PINS = 1, CACHE_COLOR = 2;
+    private final Cached[] cache;
+
+    public LockedBoard (Protocol.Config cfg){
+        super(cfg);
+        for (int i = 0; i < colorCount(); i++) byColor.add(new ArrayList<>());
+        this.cache = new Cached[CACHE_COLOR + colorCount()];
+    }
+
+    private boolean hasCompleteOverlap (int x, int y){
+        return origins.contains(pack(x, y));
+    }
+
+    private void gridAdd(Note n){
+        List<Long> cells = new ArrayList<>(4);
+        gridCells(n, cells);
+        for (Long c: cells) grid.computeIfAbsent(c, k -> new ArrayList<>()).add(n);
+    }
+
+    private List<Note> gridCandidates(int px, int py){
+        List<Note> cell = grid.get(cellKey(px, py));
+        return cell == null ? Collections.emptyList() : cell;
+    }
+
+    //Note with a seq the text index handed out. notes is in posting order, so it is a binary search away.
+    private Note noteOfSeq(long s){
+        return notes.get(firstAfter(notes, s - 1));
+    }
+
+    private int textSize(Query q){
+        return q.hasText() ? text.estimate(q.text()) : -1;
+    }
+
+
+    //Returns the cached response for a slot if nothing changed since it was built. Caller holds the read lock.
+    private byte[] cached(int slot){
+        Cached c = cache[slot];
+        return c != null && c.version() == version ? c.bytes() : null;
+    }
+
+    private byte[] remember(int slot, byte[] bytes){
+        cache[slot] = new Cached(version, bytes);
+        return bytes;
+    }
+
+    @Override
+    public Result post(int x, int y, int color, String message){
+        rw.writeLock().lock(); //Aquires lock
+        try{
+            //Determines if note is in valid position
+            if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
+            if (hasCompleteOverlap(x, y)) return Result.COMPLETE_OVERLAP;
+            //If so creates new note object and adds it to the board object
+            Note n = new Note(x, y, color, message, ++seq);
+            notes.add(n);
+            origins.add(pack(x, y));
+            gridAdd(n);
+            byColor.get(color).add(n);
+            unpinned.add(n);
+            text.add(n.seq(), message);
+            logPost(x, y, color, message);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+
+
+    @Override
+    public Result pin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            boolean pinnedAny = false;
+            long p = pack(x, y);
+            //Checks each note in the point's cell to determine overlap, and updates variables if true.
+            for (Note n: gridCandidates(x, y)){
+                if (isPinInNote(n, x, y) && n.addPin(p)){
+                    unpinned.remove(n);
+                    pinnedAny = true;
+                }
+            }
+            if (!pinnedAny) return Result.NO_NOTE_AT_COORDINATE;
+            pins.add(p);
+            logPin(x, y);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result unpin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            if (!pins.remove(p)) return Result.PIN_NOT_FOUND;
+            //Only notes covering the point can be holding the pin
+            for (Note n: gridCandidates(x, y)){
+                if (n.removePin(p) && !n.hasAnyPins()) unpinned.add(n);
+            }
+            logUnpin(x, y);
+            version++;
+            return Result.OK;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public int shake () {
+        rw.writeLock().lock();  //Aquires lock
+        try{
+            //Remove all notes not attached to board through force. Unpinned set already knows which ones.
+            int removed = unpinned.size();
+            if (removed == 0) return 0;
+            notes.removeIf(unpinned::contains);
+
+            //Only touch the grid cells and color lists the removed notes were in
+            Set<Long> cells = new HashSet<>();
+            boolean[] colorsTouched = new boolean[byColor.size()];
+            for (Note n: unpinned){
+                origins.remove(pack(n.x(), n.y()));
+                gridCells(n, cells);
+                colorsTouched[n.color()] = true;
+            }
+            for (Long c: cells){
+                List<Note> cell = grid.get(c);
+                cell.removeIf(unpinned::contains);
+                if (cell.isEmpty()) grid.remove(c);
+            }
+            for (int i = 0; i < colorsTouched.length; i++) if (colorsTouched[i]) byColor.get(i).removeIf(unpinned::contains);
+            LongHashSet seqs = new LongHashSet(removed);
+            List<String> messages = new ArrayList<>(removed);
+            for (Note n: unpinned){
+                seqs.add(n.seq());
+                messages.add(n.message());
+            }
+            text.removeAll(seqs, messages);
+
+            unpinned.clear();
+            logShake(removed);
+            version++;
+            return removed;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void clear () {
+        rw.writeLock().lock();  //Aquires lock
+        try {
+            //Wipe all notes with helper function.
+            notes.clear();
+            origins.clear();
+            grid.clear();
+            for (List<Note> l: byColor) l.clear();
+            pins.clear();
+            unpinned.clear();
+            text.clear();
+            logClear();
+            version++;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public BoardImage capture(Runnable atomically){
+        rw.readLock().lock(); //Aquires lock, enough to keep writers out while references are copied
+        try {
+            atomically.run();
+            BoardImage img = new BoardImage(notes.size());
+            for (Note n: notes) img.addNote(n.x(), n.y(), n.color(), n.message(), n.seq(), n.pins());
+            img.setPins(pins.toArray());
+            img.setSeq(seq);
+            return img;
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void restore(BoardImage img){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            for (int i = 0; i < img.count(); i++){
+                Note n = new Note(img.x(i), img.y(i), img.color(i), img.message(i), img.seq(i));
+                for (long p: img.pins(i)) n.addPin(p);
+                notes.add(n);
+                origins.add(pack(n.x(), n.y()));
+                gridAdd(n);
+                byColor.get(n.color()).add(n);
+                text.add(n.seq(), n.message());
+                if (!n.hasAnyPins()) unpinned.add(n);
+            }
+            for (long p: img.pins()) pins.add(p);
+            seq = img.seq();
+            version++;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getAllNotes(){
+        rw.readLock().lock();  //Aquires lock
+        try {
+            byte[] hit = cached(CACHE_ALL);
+            return hit != null ? hit : remember(CACHE_ALL, renderNotes(notes));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesByColor(int color){
+        rw.readLock().lock();  //Aquires lock
+        try {
+            //Color index already holds exactly the matching notes in posting order
+            if (!isColor(color)) return renderNotes(Collections.emptyList());
+            byte[] hit = cached(CACHE_COLOR + color);
+            return hit != null ? hit : remember(CACHE_COLOR + color, renderNotes(byColor.get(color)));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesAt(int x, int y){
+        rw.readLock().lock();  //Aquires lock
+        try {
+            //Uses helper function to determine all notes which are overlaying the pin locaiton
+            List<Note> filtered = new ArrayList<>();
+            for (Note n: gridCandidates(x, y)) if (isPinInNote(n, x, y)) filtered.add(n);
+            return renderNotes(filtered);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Page page(long after, Query q, int max, ByteArrayOutputStream out){
+        rw.readLock().lock();  //Aquires lock
+        try {
+            if (q.hasColor() && !isColor(q.color())) return new Page(0, after, false);
+            if (plan(q, q.hasColor() ? byColor.get(q.color()).size() : -1, textSize(q)) == Source.TEXT){
+                return pageOf(notesOf(text.candidates(q.text()), after, this::noteOfSeq), after, q, max, out);
+            }
+            //Both indexes are in posting order, so the cursor is a binary search away
+            List<Note> list = q.hasColor() ? byColor.get(q.color()) : notes;
+            return pageOf(list.listIterator(firstAfter(list, after)), after, q, max, out);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] query(Query q){
+        rw.readLock().lock();  //Aquires lock
+        try {
+            if (q.hasColor() && !isColor(q.color())) return renderNotes(Collections.emptyList());
+            Iterator<Note> source = switch (plan(q, q.hasColor() ? byColor.get(q.color()).size() : -1, textSize(q))) {
+                case POINT -> gridCandidates(q.x(), q.y()).iterator();
+                case TEXT -> notesOf(text.candidates(q.text()), 0, this::noteOfSeq);
+                case COLOR -> byColor.get(q.color()).iterator();
+                case ALL -> notes.iterator();
+            };
+            List<Note> found = new ArrayList<>();
+            while (source.hasNext()){
+                Note n = source.next();
+                if (matches(q, n)) found.add(n);
+            }
+            return renderNotes(found);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getAllPins(){
+        rw.readLock().lock();  //Aquires lock
+        try { 
+            //Pin set already iterates in placement order
+            byte[] hit = cached(CACHE_PINS);
+            return hit != null ? hit : remember(CACHE_PINS, renderPins(pins));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+
+}
\ No newline at end of file
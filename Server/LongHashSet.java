@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+public class LongHashSet {
+    //Open addressing set of primitive longs, used for packed (x, y) coordinates so lookups never box a key.
+    //Linear probing with backward shift deletion keeps the table free of tombstones.
+    //Long.MIN_VALUE marks an empty slot, packed non-negative coordinates can never produce it.
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] table;
+    private int size;
+
+    public LongHashSet(){
+        this(16);
+    }
+
+    public LongHashSet(int expected){
+        int cap = 16;
+        while (cap < expected * 2) cap <<= 1;
+        table = new long[cap];
+        Arrays.fill(table, EMPTY);
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    private static int mix(long k){
+        //Spread the high (x) and low (y) halves so neighbouring coordinates do not cluster
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public boolean contains(long k){
+        int mask = table.length - 1;
+        for (int i = mix(k) & mask; table[i] != EMPTY; i = (i + 1) & mask){
+            if (table[i] == k) return true;
+        }
+        return false;
+    }
+
+    public boolean add(long k){
+        int mask = table.length - 1;
+        int i = mix(k) & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask){
+            if (table[i] == k) return false;
+        }
+        table[i] = k;
+        if (++size * 2 > table.length) grow();
+        return true;
+    }
+
+    public boolean remove(long k){
+        int mask = table.length - 1;
+        int i = mix(k) & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask){
+            if (table[i] == k) break;
+        }
+        if (table[i] == EMPTY) return false;
+
+        //Shift later entries of the probe run back so lookups never stop early
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask){
+            int home = mix(table[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public void clear(){
+        Arrays.fill(table, EMPTY);
+        size = 0;
+    }
+
+    private void grow(){
+        long[] old = table;
+        table = new long[old.length * 2];
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        for (long k: old) if (k != EMPTY) add(k);
+    }
+}
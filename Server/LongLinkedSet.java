@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+public class LongLinkedSet {
+    //Open addressing set of primitive longs that remembers insertion order, the packed counterpart of LinkedHashSet.
+    //Used for packed (x << 32 | y) pins on notes and boards, so pin and unpin never box or allocate once the arrays are sized.
+    //Keys sit in a dense array in insertion order and the hash table holds their positions. Removing leaves a hole in the
+    //dense array, holes are squeezed out when it fills up, so iteration order is always the order keys were added.
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private int[] table; //Position in keys + 1, 0 marks an empty slot
+    private long[] keys;
+    private int end, size;
+
+    public LongLinkedSet(){
+        this(8);
+    }
+
+    public LongLinkedSet(int expected){
+        int cap = 4;
+        while (cap < expected * 2) cap <<= 1;
+        table = new int[cap];
+        keys = new long[Math.max(2, expected)];
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    private static int mix(long k){
+        //Same spreading as LongHashSet
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //Table slot holding k, or the empty slot where it would go.
+    private int slotOf(long k){
+        int mask = table.length - 1;
+        int i = mix(k) & mask;
+        while (table[i] != 0 && keys[table[i] - 1] != k) i = (i + 1) & mask;
+        return i;
+    }
+
+    public boolean contains(long k){
+        return table[slotOf(k)] != 0;
+    }
+
+    public boolean add(long k){
+        int i = slotOf(k);
+        if (table[i] != 0) return false;
+        if (end == keys.length){
+            if (size * 2 <= end) squeeze();
+            else keys = Arrays.copyOf(keys, keys.length * 2);
+            i = slotOf(k);
+        }
+        keys[end] = k;
+        table[i] = ++end;
+        if (++size * 2 > table.length) rehash(table.length * 2);
+        return true;
+    }
+
+    public boolean remove(long k){
+        int i = slotOf(k);
+        if (table[i] == 0) return false;
+        keys[table[i] - 1] = EMPTY;
+
+        //Backward shift deletion, same as LongHashSet
+        int mask = table.length - 1;
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask){
+            int home = mix(keys[table[j] - 1]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = 0;
+        if (--size == 0) end = 0;
+        return true;
+    }
+
+    public void clear(){
+        Arrays.fill(table, 0);
+        end = size = 0;
+    }
+
+    //Visits keys in insertion order.
+    public void forEach(LongConsumer action){
+        for (int p = 0; p < end; p++) if (keys[p] != EMPTY) action.accept(keys[p]);
+    }
+
+    public long[] toArray(){
+        long[] out = new long[size];
+        int n = 0;
+        for (int p = 0; p < end; p++) if (keys[p] != EMPTY) out[n++] = keys[p];
+        return out;
+    }
+
+    //Closes the holes left by removals, keeping order, then points the table at the new positions.
+    private void squeeze(){
+        int w = 0;
+        for (int p = 0; p < end; p++) if (keys[p] != EMPTY) keys[w++] = keys[p];
+        end = w;
+        rehash(table.length);
+    }
+
+    private void rehash(int cap){
+        table = new int[cap];
+        int mask = cap - 1;
+        for (int p = 0; p < end; p++){
+            if (keys[p] == EMPTY) continue;
+            int i = mix(keys[p]) & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = p + 1;
+        }
+    }
+}
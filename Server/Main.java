@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 
 public class Main {
@@ -6,8 +9,34 @@ public class Main {
         /*
         Input Format: <port> <board_width> <board_height> <note_width> <note_height> <color 1> ... <color n>
         Must be at least one color.
+        Optional switches of the form --name=value may appear anywhere:
+            --store=locked|snapshot|striped|compact|mapped
+                                              board storage mode, compact keeps notes in primitive arrays (default locked)
+            --store-file=FILE                 mapped store only: notes live in memory mapped FILE, FILE.msg and FILE.pins
+                                              and survive restarts on their own (default board.dat)
+            --server=threads|virtual|pool|nio platform thread per connection, virtual thread per connection,
+                                              fixed worker pool, or a single selector loop (default threads)
+                                              virtual needs JDK 21, older JDKs fall back to a platform thread per connection
+            --max-connections=N               live connection cap, extra clients get an ERROR instead of the handshake
+                                              (default 10000 for virtual, pool-size + pool-queue for pool, none for threads and nio)
+            --pool-size=N --pool-queue=M      worker threads and waiting connections for pool (default 200 and 1000)
+            --occupancy-every=SECONDS         print live connections, busy workers and queued connections every SECONDS
+                                              (default 0 for never, rejects are always summarised)
+            --wal=FILE                        write-ahead log of every change, replayed into the board on startup
+            --fsync=always|never|MILLIS       log durability: fsync before each reply, never, or every MILLIS (default 50)
+            --snapshot-every=SECONDS          save the board to FILE.snap and drop the log behind it (default 60, 0 for never)
         */
 
+        //Pull the switches out first so the positional arguments keep their original meaning
+        Map<String, String> opts = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String a: args){
+            int eq = a.indexOf('=');
+            if (a.startsWith("--") && eq > 2) opts.put(a.substring(2, eq), a.substring(eq + 1));
+            else positional.add(a);
+        }
+        args = positional.toArray(new String[0]);
+
         //Confirms minimum ammount of arguments
         if (args.length < 6){
             System.err.println("Not Enough Arguments");
@@ -20,7 +49,13 @@ public class Main {
         int board_height = Integer.parseInt(args[2]);
         int note_width = Integer.parseInt(args[3]);
         int note_height = Integer.parseInt(args[4]);
-        
+
+        //The grid index divides by the note size, so a zero sized note would only fail later on the first POST or GET
+        if (note_width <= 0 || note_height <= 0){
+            System.err.println("Note width and height must be positive");
+            System.exit(1);
+        }
+
         List<String> note_colors = new ArrayList<>();
 
         //Note: Since the colors will be anything following the first 5 manditory arguments, we just append all following arguments to the list
@@ -31,9 +66,81 @@ public class Main {
             
         //Create a new Protocol object which contains all the 'settings' to persist
         Protocol.Config cfg = new Protocol.Config(board_width,board_height,note_width,note_height,note_colors);
-        //With the newly created Protocol object create a Board Object
-        Board board = new Board(cfg);
+        //With the newly created Protocol object create a Board Object in the requested storage mode
+        Board board;
+        try {
+            String store = opts.getOrDefault("store", "locked");
+            //The mapped store is its own persistence, a log on top would replay changes it already has
+            if (store.equals("mapped") && opts.containsKey("wal"))
+                throw new IllegalArgumentException("--wal can not be used with --store=mapped");
+            board = Board.create(store, cfg, Path.of(opts.getOrDefault("store-file", "board.dat")));
+        } catch (IllegalArgumentException | UncheckedIOException e){
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        //Rebuild the board from the latest snapshot plus the log written after it, before any client can connect
+        if (opts.containsKey("wal")){
+            Path walPath = Path.of(opts.get("wal"));
+            Path snapPath = walPath.resolveSibling(walPath.getFileName() + ".snap");
+            String fsync = opts.getOrDefault("fsync", "50");
+            long snapshotEvery = Long.parseLong(opts.getOrDefault("snapshot-every", "60"));
+            WriteAheadLog.Sync sync = WriteAheadLog.parseSync(fsync);
+
+            long started = System.nanoTime();
+            long covered = -1;
+            BoardImage img = BoardImage.read(snapPath, cfg);
+            if (img != null){
+                board.restore(img);
+                covered = img.segment();
+            }
+            long replayed = WriteAheadLog.replayAll(walPath, covered, board, cfg);
+            System.out.println("restored " + (img == null ? 0 : img.count()) + " notes from snapshot and " + replayed
+                    + " log records in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+
+            WriteAheadLog wal = WriteAheadLog.open(walPath, covered, sync, sync == WriteAheadLog.Sync.INTERVAL ? Long.parseLong(fsync) : 50);
+            board.attachLog(wal);
+            Snapshotter snapshots = new Snapshotter(board, wal, snapPath, cfg, snapshotEvery * 1000);
+            if (snapshotEvery > 0) snapshots.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    //Connections stay open until the process exits, their changes from here on get an ERROR
+                    board.closeWrites();
+                    //A last snapshot makes the next start skip the log entirely
+                    if (snapshotEvery > 0) snapshots.snapshot();
+                    wal.close();
+                } catch (IOException e){
+                    System.err.println("write-ahead log close failed: " + e.getMessage());
+                }
+            }));
+        }
+
         //With all previous objects, start a new server object
-        new NbbServer(port, board, cfg).start();
+        String server = opts.getOrDefault("server", "threads");
+        int poolSize = Integer.parseInt(opts.getOrDefault("pool-size", "200"));
+        int poolQueue = Integer.parseInt(opts.getOrDefault("pool-queue", "1000"));
+        long occupancyEvery = Long.parseLong(opts.getOrDefault("occupancy-every", "0")) * 1000;
+        if (server.equals("nio")){
+            NioServer nio = new NioServer(port, board, cfg,
+                    Integer.parseInt(opts.getOrDefault("max-connections", String.valueOf(Integer.MAX_VALUE))));
+            if (occupancyEvery > 0) nio.reportOccupancy(occupancyEvery);
+            nio.start();
+            return;
+        }
+        NbbServer s = switch (server) {
+            case "threads" -> new NbbServer(port, board, cfg, NbbServer.Mode.THREADS,
+                    Integer.parseInt(opts.getOrDefault("max-connections", String.valueOf(Integer.MAX_VALUE))), 0, 0);
+            case "virtual" -> new NbbServer(port, board, cfg, NbbServer.Mode.VIRTUAL,
+                    Integer.parseInt(opts.getOrDefault("max-connections", "10000")), 0, 0);
+            case "pool" -> new NbbServer(port, board, cfg, NbbServer.Mode.POOL,
+                    Integer.parseInt(opts.getOrDefault("max-connections", String.valueOf(poolSize + poolQueue))), poolSize, poolQueue);
+            default -> null;
+        };
+        if (s == null){
+            System.err.println("Unknown server mode: " + server);
+            System.exit(1);
+        }
+        if (occupancyEvery > 0) s.reportOccupancy(occupancyEvery);
+        s.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedArea implements Closeable {
+    //A file mapped into memory with FileChannel.map in fixed size chunks, so it can grow past the 2 GB limit of one mapping.
+    //The data lives in the OS page cache rather than on the Java heap. Fixed size records never straddle two chunks
+    //as long as the record size divides CHUNK, byte runs may and are copied piece by piece. So may an int or long at
+    //an arbitrary offset, like a length prefix in a heap of variable sized entries, which is then put together byte by byte.
+    //Not thread safe, the owning board guards it with its own lock.
+    static final int CHUNK = 1 << 26;
+
+    private final FileChannel ch;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    public MappedArea(Path path) throws IOException {
+        ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ensure(Math.max(1, ch.size()));
+    }
+
+    //Maps enough chunks to address [0, size). Mapping past the end of the file grows the file.
+    public void ensure(long size) throws IOException {
+        while ((long) chunks.size() * CHUNK < size){
+            chunks.add(ch.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK, CHUNK));
+        }
+    }
+
+    private MappedByteBuffer chunk(long pos) {return chunks.get((int) (pos / CHUNK));}
+    private static int at(long pos) {return (int) (pos % CHUNK);}
+
+    public int getInt(long pos){
+        if (at(pos) <= CHUNK - 4) return chunk(pos).getInt(at(pos));
+        return (int) getSplit(pos, 4);
+    }
+
+    public long getLong(long pos){
+        if (at(pos) <= CHUNK - 8) return chunk(pos).getLong(at(pos));
+        return getSplit(pos, 8);
+    }
+
+    public void putInt(long pos, int v){
+        if (at(pos) <= CHUNK - 4) chunk(pos).putInt(at(pos), v);
+        else putSplit(pos, v, 4);
+    }
+
+    public void putLong(long pos, long v){
+        if (at(pos) <= CHUNK - 8) chunk(pos).putLong(at(pos), v);
+        else putSplit(pos, v, 8);
+    }
+
+    //Big endian like the buffers themselves, one byte at a time across the chunk boundary.
+    private long getSplit(long pos, int size){
+        long v = 0;
+        for (int i = 0; i < size; i++) v = (v << 8) | (chunk(pos + i).get(at(pos + i)) & 0xff);
+        return v;
+    }
+
+    private void putSplit(long pos, long v, int size){
+        for (int i = size - 1; i >= 0; i--, v >>>= 8) chunk(pos + i).put(at(pos + i), (byte) v);
+    }
+
+    public void get(long pos, byte[] dst, int off, int len){
+        while (len > 0){
+            int n = Math.min(len, CHUNK - at(pos));
+            chunk(pos).get(at(pos), dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void put(long pos, byte[] src, int off, int len){
+        while (len > 0){
+            int n = Math.min(len, CHUNK - at(pos));
+            chunk(pos).put(at(pos), src, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    //Copies len bytes from one position down to a lower one. Front to back, so overlapping runs are safe.
+    public void moveDown(long from, long to, long len){
+        byte[] scratch = new byte[(int) Math.min(len, 1 << 16)];
+        while (len > 0){
+            int n = (int) Math.min(len, scratch.length);
+            get(from, scratch, 0, n);
+            put(to, scratch, 0, n);
+            from += n;
+            to += n;
+            len -= n;
+        }
+    }
+
+    public void force(){
+        for (MappedByteBuffer b: chunks) b.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        ch.close();
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class MappedBoard extends Board {
+    //Memory mapped storage mode for boards bigger than the heap. Notes are fixed size records in FILE, messages sit in a
+    //separate heap file FILE.msg, and FILE.pins is a journal of which notes each pin holds. All three are MappedAreas, so the
+    //OS page cache holds the data and a restart just maps the files again instead of deserializing anything.
+    //Only the indexes (grid, pin sets, message tokens) are rebuilt in memory on open. One rw lock guards it all, like LockedBoard.
+    //Dirty pages reach the files when the process exits, a machine crash can lose recent changes.
+
+    private static final int MAGIC = 0x4E42424D; //"NBBM"
+    private static final int FORMAT = 1;
+
+    //Header at the front of the note file
+    private static final int H_MAGIC = 0, H_FORMAT = 4, H_BOARD_W = 8, H_BOARD_H = 12, H_NOTE_W = 16, H_NOTE_H = 20,
+            H_COLORS = 24, H_COUNT = 28, H_SEQ = 32, H_HEAP = 40, H_JOURNAL = 48;
+    private static final int HEADER = 64;
+
+    //Note record. A color of -1 marks a note removed by a shake, the slot is reclaimed when the file is compacted.
+    private static final int RECORD = 32;
+    private static final int R_X = 0, R_Y = 4, R_COLOR = 8, R_PINS = 12, R_SEQ = 16, R_MSG = 24;
+
+    //Journal record: a packed pin and the seq of a note it now holds, or REMOVED when the pin was taken out.
+    private static final int HOLD = 16;
+    private static final long REMOVED = -1;
+
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    private final MappedArea notes, heap, journal;
+
+    //Mirrors of the header fields
+    private int count;
+    private long seq, heapUsed, journalUsed;
+
+    //In memory indexes, rebuilt on open
+    private int dead, unpinnedCount, liveHolds;
+    private final CellIndex grid = new CellIndex();
+    private final LongLinkedSet pins = new LongLinkedSet();
+    private long[][] notePins = new long[64][];
+    //Message tokens to note seqs, for GET refersTo=. Seqs survive compaction, so only posts and shakes touch it.
+    //Its varint lists cost a byte or two per token of a message, small next to the records it keeps off the heap.
+    private final TextIndex text = new TextIndex();
+
+    private long version = 0;
+    private record Cached(long version, byte[] bytes) {}
+    private static final int CACHE_ALL = 0, CACHE_PINS = 1, CACHE_COLOR = 2;
+    private final Cached[] cache;
+    private final byte[][] colorNames;
+
+    public MappedBoard (Protocol.Config cfg, Path file){
+        super(cfg);
+        this.cache = new Cached[CACHE_COLOR + colorCount()];
+        this.colorNames = new byte[colorCount()][];
+        for (int i = 0; i < colorCount(); i++) colorNames[i] = cfg.colorName(i).getBytes(StandardCharsets.UTF_8);
+        try {
+            notes = new MappedArea(file);
+            heap = new MappedArea(file.resolveSibling(file.getFileName() + ".msg"));
+            journal = new MappedArea(file.resolveSibling(file.getFileName() + ".pins"));
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        if (notes.getInt(H_MAGIC) == 0) writeNewHeader();
+        else open(file);
+    }
+
+    private void writeNewHeader(){
+        notes.putInt(H_MAGIC, MAGIC);
+        notes.putInt(H_FORMAT, FORMAT);
+        notes.putInt(H_BOARD_W, cfg.board_width());
+        notes.putInt(H_BOARD_H, cfg.board_height());
+        notes.putInt(H_NOTE_W, cfg.note_width());
+        notes.putInt(H_NOTE_H, cfg.note_height());
+        notes.putInt(H_COLORS, cfg.colors().hashCode());
+        saveCounters();
+    }
+
+    //Maps an existing board: checks it was made for this configuration, then rebuilds the grid and pin sets.
+    private void open(Path file){
+        if (notes.getInt(H_MAGIC) != MAGIC || notes.getInt(H_FORMAT) != FORMAT)
+            throw new IllegalArgumentException("Not a board file: " + file);
+        if (notes.getInt(H_BOARD_W) != cfg.board_width() || notes.getInt(H_BOARD_H) != cfg.board_height()
+                || notes.getInt(H_NOTE_W) != cfg.note_width() || notes.getInt(H_NOTE_H) != cfg.note_height()
+                || notes.getInt(H_COLORS) != cfg.colors().hashCode())
+            throw new IllegalArgumentException("Board file " + file + " was created with a different board size or colors");
+
+        count = notes.getInt(H_COUNT);
+        seq = notes.getLong(H_SEQ);
+        heapUsed = notes.getLong(H_HEAP);
+        journalUsed = notes.getLong(H_JOURNAL);
+        if (notePins.length < count) notePins = new long[count][];
+        //Pin counts are recounted from the journal below
+        for (int i = 0; i < count; i++){
+            notes.putInt(rec(i) + R_PINS, 0);
+            if (!isLive(i)) { dead++; continue; }
+            gridAdd(i);
+            text.add(notes.getLong(rec(i) + R_SEQ), message(i));
+            unpinnedCount++;
+        }
+        for (long j = 0; j < journalUsed; j++){
+            long p = journal.getLong(j * HOLD), noteSeq = journal.getLong(j * HOLD + 8);
+            if (noteSeq == REMOVED){
+                pins.remove(p);
+                int x = (int) (p >> 32), y = (int) p;
+                for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)) dropPin(grid.slot(e), p);
+            } else {
+                //Holds on notes a shake removed since were already given back by an unpin
+                int i = indexOfSeq(noteSeq);
+                if (i >= 0 && isLive(i) && addPin(i, p)) pins.add(p);
+            }
+        }
+    }
+
+    private static long rec(int i) {return HEADER + (long) i * RECORD;}
+    private boolean isLive(int i) {return notes.getInt(rec(i) + R_COLOR) >= 0;}
+    private int x(int i) {return notes.getInt(rec(i) + R_X);}
+    private int y(int i) {return notes.getInt(rec(i) + R_Y);}
+
+    private void saveCounters(){
+        notes.putInt(H_COUNT, count);
+        notes.putLong(H_SEQ, seq);
+        notes.putLong(H_HEAP, heapUsed);
+        notes.putLong(H_JOURNAL, journalUsed);
+    }
+
+    //Records stay in posting order, so seq is ascending and a binary search finds a note.
+    private int indexOfSeq(long s){
+        int lo = 0, hi = count - 1;
+        while (lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            long v = notes.getLong(rec(mid) + R_SEQ);
+            if (v < s) lo = mid + 1;
+            else if (v > s) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private boolean covers(int i, int px, int py){
+        int x = x(i), y = y(i);
+        return x <= px && px < x + cfg.note_width() && y <= py && py < y + cfg.note_height();
+    }
+
+    private void gridAdd(int i){
+        int x = x(i), y = y(i);
+        int cx0 = x / cfg.note_width(), cx1 = (x + cfg.note_width() - 1) / cfg.note_width();
+        int cy0 = y / cfg.note_height(), cy1 = (y + cfg.note_height() - 1) / cfg.note_height();
+        for (int cy = cy0; cy <= cy1; cy++){
+            for (int cx = cx0; cx <= cx1; cx++) grid.add(pack(cx, cy), i);
+        }
+    }
+
+    private boolean hasCompleteOverlap(int x, int y){
+        for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+            int i = grid.slot(e);
+            if (isLive(i) && x(i) == x && y(i) == y) return true;
+        }
+        return false;
+    }
+
+    //Adds p to a note's in memory pin set and its record's pin count. Returns false if the note already had it.
+    private boolean addPin(int i, long p){
+        long[] ps = notePins[i];
+        int n = notes.getInt(rec(i) + R_PINS);
+        for (int k = 0; k < n; k++) if (ps[k] == p) return false;
+        if (ps == null) ps = notePins[i] = new long[2];
+        else if (n == ps.length) ps = notePins[i] = Arrays.copyOf(ps, n * 2);
+        ps[n] = p;
+        notes.putInt(rec(i) + R_PINS, n + 1);
+        if (n == 0) unpinnedCount--;
+        liveHolds++;
+        return true;
+    }
+
+    private void dropPin(int i, long p){
+        long[] ps = notePins[i];
+        int n = notes.getInt(rec(i) + R_PINS);
+        for (int k = 0; k < n; k++){
+            if (ps[k] != p) continue;
+            ps[k] = ps[n - 1];
+            notes.putInt(rec(i) + R_PINS, n - 1);
+            if (n == 1) unpinnedCount++;
+            liveHolds--;
+            return;
+        }
+    }
+
+    private void appendHold(long p, long noteSeq) throws IOException {
+        journal.ensure((journalUsed + 1) * HOLD);
+        journal.putLong(journalUsed * HOLD, p);
+        journal.putLong(journalUsed * HOLD + 8, noteSeq);
+        journalUsed++;
+    }
+
+    //Rewrites the journal from the live pin sets once it is mostly history. Walking pins in placement order keeps that order on replay.
+    private void compactJournal(){
+        if (journalUsed < 1024 || journalUsed < 4L * liveHolds) return;
+        long w = 0;
+        for (long p: pins.toArray()){
+            int x = (int) (p >> 32), y = (int) p;
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                long[] ps = notePins[i];
+                int n = isLive(i) ? notes.getInt(rec(i) + R_PINS) : 0;
+                for (int k = 0; k < n; k++){
+                    if (ps[k] != p) continue;
+                    journal.putLong(w * HOLD, p);
+                    journal.putLong(w * HOLD + 8, notes.getLong(rec(i) + R_SEQ));
+                    w++;
+                }
+            }
+        }
+        journalUsed = w;
+    }
+
+    //Slides live records and their messages down over the holes left by shakes, keeping posting order.
+    private void compactNotes(){
+        int w = 0;
+        long heapW = 0;
+        for (int r = 0; r < count; r++){
+            if (!isLive(r)) continue;
+            long msg = notes.getLong(rec(r) + R_MSG);
+            long len = 4L + heap.getInt(msg);
+            heap.moveDown(msg, heapW, len);
+            if (w != r){
+                notes.putInt(rec(w) + R_X, x(r));
+                notes.putInt(rec(w) + R_Y, y(r));
+                notes.putInt(rec(w) + R_COLOR, notes.getInt(rec(r) + R_COLOR));
+                notes.putInt(rec(w) + R_PINS, notes.getInt(rec(r) + R_PINS));
+                notes.putLong(rec(w) + R_SEQ, notes.getLong(rec(r) + R_SEQ));
+                notePins[w] = notePins[r];
+            }
+            notes.putLong(rec(w) + R_MSG, heapW);
+            heapW += len;
+            w++;
+        }
+        Arrays.fill(notePins, w, count, null);
+        count = w;
+        heapUsed = heapW;
+        dead = 0;
+        grid.clear();
+        for (int i = 0; i < count; i++) gridAdd(i);
+    }
+
+    private byte[] cached(int slot){
+        Cached c = cache[slot];
+        return c != null && c.version() == version ? c.bytes() : null;
+    }
+
+    private byte[] remember(int slot, byte[] bytes){
+        cache[slot] = new Cached(version, bytes);
+        return bytes;
+    }
+
+    //Appends one note record and its message. Caller holds the write lock and has done any validation.
+    private void append(int x, int y, int color, String message, long noteSeq) throws IOException {
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        heap.ensure(heapUsed + 4 + m.length);
+        heap.putInt(heapUsed, m.length);
+        heap.put(heapUsed + 4, m, 0, m.length);
+
+        notes.ensure(rec(count + 1));
+        if (count == notePins.length) notePins = Arrays.copyOf(notePins, count * 2);
+        long r = rec(count);
+        notes.putInt(r + R_X, x);
+        notes.putInt(r + R_Y, y);
+        notes.putInt(r + R_COLOR, color);
+        notes.putInt(r + R_PINS, 0);
+        notes.putLong(r + R_SEQ, noteSeq);
+        notes.putLong(r + R_MSG, heapUsed);
+        notePins[count] = null;
+        heapUsed += 4 + m.length;
+        gridAdd(count);
+        text.add(noteSeq, message);
+        count++;
+        unpinnedCount++;
+    }
+
+    @Override
+    public Result post(int x, int y, int color, String message){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            //Determines if note is in valid position
+            if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
+            if (hasCompleteOverlap(x, y)) return Result.COMPLETE_OVERLAP;
+            append(x, y, color, message, ++seq);
+            saveCounters();
+            logPost(x, y, color, message);
+            version++;
+            return Result.OK;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result pin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            boolean pinnedAny = false;
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (isLive(i) && covers(i, x, y) && addPin(i, p)){
+                    appendHold(p, notes.getLong(rec(i) + R_SEQ));
+                    pinnedAny = true;
+                }
+            }
+            if (!pinnedAny) return Result.NO_NOTE_AT_COORDINATE;
+            pins.add(p);
+            saveCounters();
+            logPin(x, y);
+            version++;
+            return Result.OK;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result unpin(int x, int y){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            if (!pins.remove(p)) return Result.PIN_NOT_FOUND;
+            //Only notes covering the point can hold the pin
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (isLive(i) && covers(i, x, y)) dropPin(i, p);
+            }
+            appendHold(p, REMOVED);
+            compactJournal();
+            saveCounters();
+            logUnpin(x, y);
+            version++;
+            return Result.OK;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public int shake(){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            if (unpinnedCount == 0) return 0;
+            int removed = 0;
+            LongHashSet gone = new LongHashSet(unpinnedCount);
+            List<String> goneMessages = new ArrayList<>(unpinnedCount);
+            for (int i = 0; i < count; i++){
+                if (!isLive(i) || notes.getInt(rec(i) + R_PINS) != 0) continue;
+                gone.add(notes.getLong(rec(i) + R_SEQ));
+                goneMessages.add(message(i));
+                notes.putInt(rec(i) + R_COLOR, -1);
+                removed++;
+            }
+            text.removeAll(gone, goneMessages);
+            dead += removed;
+            unpinnedCount = 0;
+            //Holes are cheap to skip, only compact once they are most of the file
+            if (dead * 2 > count) compactNotes();
+            saveCounters();
+            logShake(removed);
+            version++;
+            return removed;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void clear(){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            Arrays.fill(notePins, 0, count, null);
+            count = dead = unpinnedCount = liveHolds = 0;
+            heapUsed = journalUsed = 0;
+            grid.clear();
+            pins.clear();
+            text.clear();
+            saveCounters();
+            logClear();
+            version++;
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public BoardImage capture(Runnable atomically){
+        rw.readLock().lock(); //Aquires lock, enough to keep writers out while records are copied
+        try {
+            atomically.run();
+            BoardImage img = new BoardImage(count - dead);
+            for (int i = 0; i < count; i++){
+                if (!isLive(i)) continue;
+                int n = notes.getInt(rec(i) + R_PINS);
+                long[] ps = n == 0 ? new long[0] : Arrays.copyOf(notePins[i], n);
+                img.addNote(x(i), y(i), notes.getInt(rec(i) + R_COLOR), message(i), notes.getLong(rec(i) + R_SEQ), ps);
+            }
+            img.setPins(pins.toArray());
+            img.setSeq(seq);
+            return img;
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void restore(BoardImage img){
+        rw.writeLock().lock(); //Aquires lock
+        try {
+            for (int k = 0; k < img.count(); k++){
+                int i = count;
+                append(img.x(k), img.y(k), img.color(k), img.message(k), img.seq(k));
+                for (long p: img.pins(k)) if (addPin(i, p)) appendHold(p, img.seq(k));
+            }
+            for (long p: img.pins()) pins.add(p);
+            seq = Math.max(seq, img.seq());
+            saveCounters();
+            version++;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        } finally {
+            rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    private String message(int i){
+        long msg = notes.getLong(rec(i) + R_MSG);
+        byte[] b = new byte[heap.getInt(msg)];
+        heap.get(msg + 4, b, 0, b.length);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getAllNotes(){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            byte[] hit = cached(CACHE_ALL);
+            if (hit != null) return hit;
+            int[] found = new int[count - dead];
+            int n = 0;
+            for (int i = 0; i < count; i++) if (isLive(i)) found[n++] = i;
+            return remember(CACHE_ALL, render(found, n));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesByColor(int color){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            if (!isColor(color)) return render(new int[0], 0);
+            byte[] hit = cached(CACHE_COLOR + color);
+            if (hit != null) return hit;
+            //Straight scan of the records, dead ones have color -1 and never match
+            int[] found = new int[16];
+            int n = 0;
+            for (int i = 0; i < count; i++){
+                if (notes.getInt(rec(i) + R_COLOR) != color) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            return remember(CACHE_COLOR + color, render(found, n));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getNotesAt(int x, int y){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            int[] found = new int[8];
+            int n = 0;
+            for (int e = grid.head(cellKey(x, y)); e >= 0; e = grid.next(e)){
+                int i = grid.slot(e);
+                if (!isLive(i) || !covers(i, x, y)) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            //Chains run newest first, responses list notes in posting order
+            Arrays.sort(found, 0, n);
+            return render(found, n);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Page page(long after, Query q, int max, ByteArrayOutputStream out){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            byte[] scratch = new byte[256];
+            if (plan(q, -1, textSize(q)) == Source.TEXT){
+                //Only the candidates past the cursor, each found back by its seq
+                long[] c = text.candidates(q.text());
+                int k = Arrays.binarySearch(c, after);
+                int n = 0;
+                long last = after;
+                for (k = k < 0 ? -k - 1 : k + 1; k < c.length; k++){
+                    int i = indexOfSeq(c[k]);
+                    if (i < 0 || !matches(q, i)) continue;
+                    if (n == max) return new Page(n, last, true);
+                    scratch = writeNote(out, i, scratch);
+                    last = c[k];
+                    n++;
+                }
+                return new Page(n, last, false);
+            }
+            //Records are in seq order, binary search for the first one past the cursor
+            int lo = 0, hi = count;
+            while (lo < hi){
+                int mid = (lo + hi) >>> 1;
+                if (notes.getLong(rec(mid) + R_SEQ) <= after) lo = mid + 1;
+                else hi = mid;
+            }
+            int n = 0;
+            long last = after;
+            for (int i = lo; i < count; i++){
+                if (!matches(q, i)) continue;
+                if (n == max) return new Page(n, last, true);
+                scratch = writeNote(out, i, scratch);
+                last = notes.getLong(rec(i) + R_SEQ);
+                n++;
+            }
+            return new Page(n, last, false);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] query(Query q){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            int[] found = new int[16];
+            int n = 0;
+            //No color list here, so without a point or search text it is a scan of the records
+            Source source = plan(q, -1, textSize(q));
+            if (source == Source.POINT){
+                for (int e = grid.head(cellKey(q.x(), q.y())); e >= 0; e = grid.next(e)){
+                    int i = grid.slot(e);
+                    if (!matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+                //Chains run newest first
+                Arrays.sort(found, 0, n);
+            } else if (source == Source.TEXT){
+                for (long c: text.candidates(q.text())){
+                    int i = indexOfSeq(c);
+                    if (i < 0 || !matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+            } else {
+                for (int i = 0; i < count; i++){
+                    if (!matches(q, i)) continue;
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = i;
+                }
+            }
+            return render(found, n);
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    private int textSize(Query q){
+        return q.hasText() ? text.estimate(q.text()) : -1;
+    }
+
+    //Dead records never match, the message is only read from the heap when everything else passed.
+    private boolean matches(Query q, int i){
+        int c = notes.getInt(rec(i) + R_COLOR);
+        return c >= 0 && matches(q, x(i), y(i), c) && (!q.hasText() || matchesText(q, message(i)));
+    }
+
+    @Override
+    public byte[] getAllPins(){
+        rw.readLock().lock(); //Aquires lock
+        try {
+            byte[] hit = cached(CACHE_PINS);
+            return hit != null ? hit : remember(CACHE_PINS, renderPins(pins));
+        } finally {
+            rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    //Encodes notes straight from the mapped records, same bytes as Board.renderNotes.
+    private byte[] render(int[] slots, int n){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + n * 48);
+        ascii(out, "OK " + n + " RESULTS\n");
+        byte[] scratch = new byte[256];
+        for (int k = 0; k < n; k++) scratch = writeNote(out, slots[k], scratch);
+        ascii(out, "END\n");
+        return out.toByteArray();
+    }
+
+    //Copies the message out of the heap through scratch, returns scratch or a bigger one if it had to grow.
+    private byte[] writeNote(ByteArrayOutputStream out, int i, byte[] scratch){
+        long msg = notes.getLong(rec(i) + R_MSG);
+        int len = heap.getInt(msg);
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        heap.get(msg + 4, scratch, 0, len);
+        ascii(out, "NOTE " + x(i) + " " + y(i) + " ");
+        out.writeBytes(colorNames[notes.getInt(rec(i) + R_COLOR)]);
+        out.write(' ');
+        out.write(scratch, 0, len);
+        out.write('\n');
+        return scratch;
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s){
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+}
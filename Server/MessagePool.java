@@ -0,0 +1,153 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MessagePool {
+    //Pooled byte store for note messages. Each message is kept once as UTF-8 in one shared arena and handed out as an int id,
+    //identical messages share an entry through a reference count. Released entries leave dead bytes that get compacted away.
+    //Not thread safe, the owning board guards it with its own lock.
+
+    private byte[] arena = new byte[4096];
+    private int used, dead;
+
+    //Per id columns. An id with refs == 0 is on the free list and can be reused.
+    private int[] offsets = new int[64], lengths = new int[64], refs = new int[64], hashes = new int[64];
+    private int highWater;
+    private int[] free = new int[16];
+    private int freeCount;
+
+    //Open addressing table of id + 1 (0 is empty), probed by content hash, same backward shift deletion as LongHashSet.
+    private int[] table = new int[128];
+    private int live;
+
+    public int size() {return live;}
+
+    //Returns the id for a message, reusing the existing entry when the same text is already stored.
+    public int intern(String message){
+        byte[] b = message.getBytes(StandardCharsets.UTF_8);
+        int h = hash(b, 0, b.length);
+        int mask = table.length - 1;
+        int i = h & mask;
+        for (; table[i] != 0; i = (i + 1) & mask){
+            int id = table[i] - 1;
+            if (hashes[id] == h && Arrays.equals(arena, offsets[id], offsets[id] + lengths[id], b, 0, b.length)){
+                refs[id]++;
+                return id;
+            }
+        }
+
+        int id = freeCount > 0 ? free[--freeCount] : newId();
+        if (used + b.length > arena.length) makeRoom(b.length);
+        System.arraycopy(b, 0, arena, used, b.length);
+        offsets[id] = used;
+        lengths[id] = b.length;
+        hashes[id] = h;
+        refs[id] = 1;
+        used += b.length;
+        table[i] = id + 1;
+        if (++live * 2 > table.length) rehash(table.length * 2);
+        return id;
+    }
+
+    //Drops one reference. The bytes become dead once nothing refers to them.
+    public void release(int id){
+        if (--refs[id] > 0) return;
+        unlink(id);
+        dead += lengths[id];
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = id;
+        live--;
+    }
+
+    public void writeTo(int id, ByteArrayOutputStream out){
+        out.write(arena, offsets[id], lengths[id]);
+    }
+
+    public String text(int id){
+        return new String(arena, offsets[id], lengths[id], StandardCharsets.UTF_8);
+    }
+
+    public void clear(){
+        used = dead = highWater = freeCount = live = 0;
+        Arrays.fill(refs, 0);
+        Arrays.fill(table, 0);
+    }
+
+    private int newId(){
+        if (highWater == offsets.length){
+            int cap = offsets.length * 2;
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            refs = Arrays.copyOf(refs, cap);
+            hashes = Arrays.copyOf(hashes, cap);
+        }
+        return highWater++;
+    }
+
+    private void makeRoom(int need){
+        int liveBytes = used - dead;
+        //Compact in place when at least half the arena is dead and that frees enough, otherwise move to a bigger arena
+        if (dead * 2 >= used && liveBytes + need <= arena.length){
+            compact(arena);
+            return;
+        }
+        int cap = arena.length * 2;
+        while (cap < liveBytes + need) cap <<= 1;
+        if (dead == 0) arena = Arrays.copyOf(arena, cap);
+        else compact(new byte[cap]);
+    }
+
+    //Copies every live entry to the front of dst. Safe when dst is the current arena because entries only move down.
+    private void compact(byte[] dst){
+        int n = 0;
+        int[] ids = new int[live];
+        for (int id = 0; id < highWater; id++) if (refs[id] > 0) ids[n++] = id;
+        //Live ids sorted by offset so moving them down never overwrites an entry that has not moved yet
+        long[] byOffset = new long[n];
+        for (int k = 0; k < n; k++) byOffset[k] = ((long) offsets[ids[k]] << 32) | ids[k];
+        Arrays.sort(byOffset);
+        int at = 0;
+        for (long e: byOffset){
+            int id = (int) e;
+            System.arraycopy(arena, offsets[id], dst, at, lengths[id]);
+            offsets[id] = at;
+            at += lengths[id];
+        }
+        arena = dst;
+        used = at;
+        dead = 0;
+    }
+
+    private void unlink(int id){
+        int mask = table.length - 1;
+        int i = hashes[id] & mask;
+        while (table[i] != id + 1) i = (i + 1) & mask;
+
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask){
+            int home = hashes[table[j] - 1] & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private void rehash(int cap){
+        table = new int[cap];
+        int mask = cap - 1;
+        for (int id = 0; id < highWater; id++){
+            if (refs[id] <= 0) continue;
+            int i = hashes[id] & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = id + 1;
+        }
+    }
+
+    private static int hash(byte[] b, int from, int to){
+        int h = 1;
+        for (int i = from; i < to; i++) h = 31 * h + b[i];
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,31 +1,162 @@
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 
 public class NbbServer {
 
+    public enum Mode {
+        THREADS, //New platform thread per connection
+        VIRTUAL, //New virtual thread per connection
+        POOL     //Fixed pool of platform threads with a bounded queue of waiting connections
+    }
+
     private final int port;
     private final Board board;
     private final Protocol.Config cfg;
+    private final Mode mode;
+    private final int maxConnections;
+    private final int poolSize, poolQueue;
+    //One permit per live connection (running or queued). When none are left new clients are turned away straight after accept.
+    private final Semaphore slots;
+    private volatile ThreadPoolExecutor pool;
+    private final Rejections rejections = new Rejections();
 
     public NbbServer(int port, Board board, Protocol.Config cfg){
+        this(port, board, cfg, Mode.THREADS, Integer.MAX_VALUE, 0, 0);
+    }
+
+    public NbbServer(int port, Board board, Protocol.Config cfg, Mode mode, int maxConnections, int poolSize, int poolQueue){
         //Creates object based on specs for storing and routing down
         this.port = port;
         this.board = board;
         this.cfg = cfg;
+        this.mode = mode;
+        this.maxConnections = maxConnections;
+        this.poolSize = poolSize;
+        this.poolQueue = poolQueue;
+        this.slots = new Semaphore(maxConnections);
+    }
+
+    //Occupancy, for sizing the pool and connection cap.
+    public int liveConnections() {return maxConnections - slots.availablePermits();}
+    public int busyWorkers() {ThreadPoolExecutor p = pool; return p == null ? liveConnections() : p.getActiveCount();}
+    public int queuedConnections() {ThreadPoolExecutor p = pool; return p == null ? 0 : p.getQueue().size();}
+
+    public String occupancy(){
+        return "connections " + liveConnections() + (maxConnections == Integer.MAX_VALUE ? "" : "/" + maxConnections)
+            + (pool == null ? "" : ", workers " + busyWorkers() + "/" + poolSize + ", queued " + queuedConnections() + "/" + poolQueue);
+    }
+
+    //Prints the occupancy every intervalMs, so the pool and cap can be sized from normal load rather than only from
+    //the reject summaries of a server that is already full.
+    public void reportOccupancy(long intervalMs){
+        reportEvery(intervalMs, this::occupancy);
+    }
+
+    static void reportEvery(long intervalMs, Supplier<String> occupancy){
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e){
+                    return;
+                }
+                System.out.println("occupancy: " + occupancy.get());
+            }
+        }, "occupancy");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private ExecutorService newExecutor(){
+        return switch (mode) {
+            case THREADS -> null;
+            //Virtual threads park cheaply on blocking socket reads, so the unchanged ClientHandler scales to many idle clients
+            case VIRTUAL -> virtualExecutor();
+            //A full queue makes execute throw, which is turned into a busy reply below
+            case POOL -> pool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(poolQueue), new ThreadPoolExecutor.AbortPolicy());
+        };
+    }
+
+    //Virtual threads are final in JDK 21. The server is built for JDK 17, so the executor is looked up at runtime.
+    //Older JDKs fall back to a platform thread per connection, null here, like THREADS.
+    private static ExecutorService virtualExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e){
+            System.out.println("virtual threads need JDK 21 or newer, this is JDK " + Runtime.version().feature()
+                    + ", using a platform thread per connection");
+            return null;
+        }
     }
 
     public void start() throws IOException {
+        ExecutorService exec = newExecutor();
         try (ServerSocket serverSocket = new ServerSocket(port)){
-            System.out.println("server listening on port " + port); //Confirms working
+            System.out.println("server listening on port " + port + " (" + mode.name().toLowerCase() + ")"); //Confirms working
             while (true) {
                 //Generates new client and thread then starts program
                 Socket client = serverSocket.accept();
-                Thread t = new Thread(new ClientHandler(client,board,cfg));
-                t.start();
-                
+                if (!slots.tryAcquire()){
+                    reject(client);
+                    continue;
+                }
+                //Virtual connections get virtual event threads too, the other modes keep them off their workers
+                Executor helpers = mode == Mode.VIRTUAL && exec != null ? exec : ClientHandler::daemon;
+                Runnable task = () -> {
+                    try {
+                        new ClientHandler(client, board, cfg, helpers).run();
+                    } finally {
+                        slots.release();
+                    }
+                };
+                try {
+                    if (exec != null) exec.execute(task);
+                    else new Thread(task).start();
+                } catch (RejectedExecutionException e){
+                    slots.release();
+                    reject(client);
+                }
             }
+        } finally {
+            if (exec != null) exec.shutdown();
+        }
+    }
+
+    private void reject(Socket client){
+        //Saturated: answer with a protocol error instead of the handshake and hang up, so the client fails fast
+        try (client; OutputStream out = client.getOutputStream()){
+            out.write(Protocol.error(Protocol.Err.SERVER_BUSY, Protocol.Cmd.CONNECT).bytes());
+            out.flush();
+        } catch (IOException ignored) {}
+        rejections.add(this::occupancy);
+    }
+
+    //Counts clients turned away and prints at most one summary a second, so a connection storm does not put a
+    //console write per reject on the accept thread. Only ever used from the accept thread.
+    static final class Rejections {
+        private long count;
+        private long lastReport = System.nanoTime() - 1_000_000_000L;
+
+        void add(Supplier<String> occupancy){
+            count++;
+            long now = System.nanoTime();
+            if (now - lastReport < 1_000_000_000L) return;
+            System.out.println("rejected " + count + " connection" + (count == 1 ? "" : "s") + " since the last report, " + occupancy.get());
+            count = 0;
+            lastReport = now;
         }
     }
     
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class NioServer {
+    //Single selector event loop. Every connection is a non-blocking channel with its own read buffer and
+    //outbound queue, so idle clients cost a few small buffers instead of a parked thread and its stack.
+
+    //A client that sends this much without a newline is dropped rather than buffered forever.
+    private static final int MAX_LINE = 1 << 20;
+    private static final int READ_CHUNK = 4096;
+
+    private final int port;
+    private final Board board;
+    private final Protocol.Config cfg;
+    private final int maxConnections;
+    //Open connections, only changed by the loop thread. Volatile for the occupancy report.
+    private volatile int live;
+    private final NbbServer.Rejections rejections = new NbbServer.Rejections();
+
+    public NioServer(int port, Board board, Protocol.Config cfg){
+        this(port, board, cfg, Integer.MAX_VALUE);
+    }
+
+    public NioServer(int port, Board board, Protocol.Config cfg, int maxConnections){
+        this.port = port;
+        this.board = board;
+        this.cfg = cfg;
+        this.maxConnections = maxConnections;
+    }
+
+    public String occupancy(){
+        return "connections " + live + (maxConnections == Integer.MAX_VALUE ? "" : "/" + maxConnections);
+    }
+
+    //See NbbServer.reportOccupancy
+    public void reportOccupancy(long intervalMs){
+        NbbServer.reportEvery(intervalMs, this::occupancy);
+    }
+
+    //Per connection state, attached to the channel's selection key.
+    private static final class Conn {
+        ByteBuffer in = ByteBuffer.allocate(READ_CHUNK);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        boolean closing; //Stop reading and close once the outbound queue drains
+        final AsciiLine line = new AsciiLine();
+        ChangeFeed.Subscriber events; //Set once the client sends SUBSCRIBE
+        Protocol.Chunks streaming; //Rest of a streamed reply still to be sent
+        long durableMark; //Log record that has to reach disk before anything queued is sent, 0 for none
+    }
+
+    //Subscribed connections whose event queue just went from empty to non-empty, filled by whichever thread published
+    private final ConcurrentLinkedQueue<SelectionKey> eventsReady = new ConcurrentLinkedQueue<>();
+    //Connections whose held replies may now be durable, filled by the log's flusher thread
+    private final ConcurrentLinkedQueue<SelectionKey> durableReady = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    public void start() throws IOException {
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()){
+            this.selector = selector;
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("server listening on port " + port + " (nio)"); //Confirms working
+
+            while (true) {
+                selector.select();
+                SelectionKey ready;
+                while ((ready = eventsReady.poll()) != null) {
+                    if (ready.isValid()) pumpEvents(ready, (Conn) ready.attachment());
+                }
+                while ((ready = durableReady.poll()) != null) {
+                    try {
+                        if (ready.isValid()) released(ready, (Conn) ready.attachment());
+                    } catch (UncheckedIOException e){
+                        close(ready);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept(server, selector);
+                        else {
+                            if (key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) write(key);
+                        }
+                    } catch (IOException | UncheckedIOException e){
+                        close(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Selector selector) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        if (live >= maxConnections){
+            //Same busy reply as the threaded servers. A fresh socket's send buffer always takes one short line.
+            try (ch){
+                ch.write(ByteBuffer.wrap(Protocol.error(Protocol.Err.SERVER_BUSY, Protocol.Cmd.CONNECT).bytes()));
+            } catch (IOException ignored) {}
+            rejections.add(() -> "connections " + live + "/" + maxConnections);
+            return;
+        }
+        live++;
+        Conn c = new Conn();
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ, c);
+        enqueue(key, c, Protocol.handshake(cfg).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Conn c = (Conn) key.attachment();
+        if (c.closing) return;
+        SocketChannel ch = (SocketChannel) key.channel();
+
+        if (!c.in.hasRemaining()){
+            if (c.in.capacity() >= MAX_LINE) { close(key); return; }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_LINE, c.in.capacity() * 2));
+            c.in.flip();
+            bigger.put(c.in);
+            c.in = bigger;
+        }
+
+        int n = ch.read(c.in);
+        if (n < 0){
+            //Like BufferedReader.readLine, a trailing line without a newline still counts at end of stream
+            c.in.flip();
+            if (c.in.hasRemaining()) dispatch(key, c, c.in, c.in.limit());
+            c.closing = true;
+            if (c.out.isEmpty()) close(key);
+            return;
+        }
+
+        frameLines(key, c);
+    }
+
+    //Frame complete lines out of the buffer, leave any partial line for the next read.
+    //Stops at a streamed reply, the lines after it wait in the buffer until it has all gone out.
+    private void frameLines(SelectionKey key, Conn c){
+        c.in.flip();
+        int start = c.in.position();
+        for (int i = start; i < c.in.limit() && !c.closing && c.streaming == null; i++){
+            if (c.in.get(i) == '\n'){
+                c.in.position(start);
+                dispatch(key, c, c.in, i);
+                start = i + 1;
+            }
+        }
+        c.in.position(start);
+        c.in.compact();
+    }
+
+    //Runs one command. The line is the buffer from its position up to end (exclusive), minus a trailing \r.
+    private void dispatch(SelectionKey key, Conn c, ByteBuffer buf, int end){
+        int from = buf.position();
+        int to = end;
+        if (to > from && buf.get(to - 1) == '\r') to--;
+        //Parse straight out of the read buffer, only the POST message is ever decoded
+        //Never blocks on the log: a change's reply is queued but held back until its record is durable (--fsync=always),
+        //so one fsync does not stall every other connection. Later pipelined replies queue up behind it.
+        Protocol.Response resp = Protocol.handleLine(c.line.set(buf.array(), from, to - from), board, cfg, false);
+        long mark = board.pendingDurable();
+        if (mark > c.durableMark){
+            c.durableMark = mark;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            board.whenDurable(mark, () -> {
+                durableReady.add(key);
+                selector.wakeup();
+            });
+        }
+        enqueue(key, c, resp.bytes());
+        if (resp.closeAfterWrite()) c.closing = true;
+        //Pages are pulled in write as the socket drains, reading pauses so pipelined commands queue up in the kernel
+        if (resp.more() != null){
+            c.streaming = resp.more();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (resp.subscribe() && c.events == null){
+            c.events = board.feed().subscribe(() -> {
+                eventsReady.add(key);
+                selector.wakeup();
+            });
+        }
+    }
+
+    //Moves waiting events into the outbound queue, but only once earlier output has gone out. Until then they stay
+    //in the bounded subscriber queue, which coalesces for a client that reads too slowly.
+    private void pumpEvents(SelectionKey key, Conn c){
+        if (c.events == null || c.closing || c.streaming != null || !c.out.isEmpty()) return;
+        byte[] e;
+        while ((e = c.events.poll()) != null) c.out.add(ByteBuffer.wrap(e));
+        if (!c.out.isEmpty() && c.durableMark == 0) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void enqueue(SelectionKey key, Conn c, byte[] bytes){
+        c.out.add(ByteBuffer.wrap(bytes));
+        if (c.durableMark == 0) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    //A log flush finished. Once the newest held record is durable the queued replies can go out, an older callback
+    //firing while a newer record is still pending changes nothing.
+    private void released(SelectionKey key, Conn c){
+        if (c.durableMark == 0 || !board.isDurable(c.durableMark)) return;
+        c.durableMark = 0;
+        if (!c.out.isEmpty()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Conn c = (Conn) key.attachment();
+        SocketChannel ch = (SocketChannel) key.channel();
+        while (!c.out.isEmpty()){
+            //Checked on every turn, a change pipelined behind a finished stream is dispatched from refill below.
+            //Its reply and everything after it wait for released.
+            if (c.durableMark != 0){
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            ByteBuffer head = c.out.peek();
+            ch.write(head);
+            if (head.hasRemaining()) return; //Socket buffer full, wait for the next OP_WRITE
+            c.out.poll();
+            if (c.out.isEmpty()) refill(key, c);
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (c.closing) close(key);
+    }
+
+    //Called when the outbound queue runs dry: the next page of a streamed reply, else pushed events.
+    private void refill(SelectionKey key, Conn c){
+        if (c.streaming != null){
+            //Events that came in during the last page go out ahead of the next one, a long stream does not hold them back
+            byte[] e;
+            if (c.events != null && !c.closing) while ((e = c.events.poll()) != null) c.out.add(ByteBuffer.wrap(e));
+            byte[] chunk = c.streaming.next();
+            if (chunk != null){
+                c.out.add(ByteBuffer.wrap(chunk));
+                return;
+            }
+            //Stream finished, answer whatever was pipelined behind it and start reading again
+            c.streaming = null;
+            if (!c.closing) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            frameLines(key, c);
+            if (!c.out.isEmpty()) return;
+        }
+        pumpEvents(key, c);
+    }
+
+    private void close(SelectionKey key){
+        Conn c = (Conn) key.attachment();
+        if (c == null) return; //Already closed
+        key.attach(null);
+        live--;
+        if (c.events != null) board.feed().unsubscribe(c.events);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+}
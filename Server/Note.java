@@ -1,14 +1,12 @@
-import java.util.HashSet;
-import java.util.Set;
-
 public class Note {
     //Base level class for storing data related to note objects
     private final int x, y;
-    private final String color, message;
+    private final int color; //Ordinal into Config.colors(), see Config.colorName
+    private final String message;
     private final long seq;
-    private final Set<Pin> pins = new HashSet<>();
+    private LongLinkedSet pins; //Packed (x << 32 | y) pins holding the note up, created on the first pin
 
-    public Note(int x, int y, String color, String message, long seq){
+    public Note(int x, int y, int color, String message, long seq){
         this.x = x;
         this.y = y;
         this.color = color;
@@ -18,13 +16,16 @@ public class Note {
 
     public int x() {return x;}
     public int y() {return y;}
-    public String color() {return color;}
+    public int color() {return color;}
     public String message() {return message;}
     public long seq() {return seq;}
-    public Set<Pin> pins() {return pins;}
+    public long[] pins() {return pins == null ? new long[0] : pins.toArray();}
 
-    boolean addPin(Pin p) { return pins.add(p); }
-    boolean removePin(Pin p) { return pins.remove(p); }
-    boolean hasPin(Pin p) { return pins.contains(p); }
-    boolean hasAnyPins() { return !pins.isEmpty(); }
+    boolean addPin(long p) {
+        if (pins == null) pins = new LongLinkedSet(2);
+        return pins.add(p);
+    }
+    boolean removePin(long p) { return pins != null && pins.remove(p); }
+    boolean hasPin(long p) { return pins != null && pins.contains(p); }
+    boolean hasAnyPins() { return pins != null && !pins.isEmpty(); }
 }
\ No newline at end of file
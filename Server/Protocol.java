@@ -1,20 +1,51 @@
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class Protocol {
     private Protocol() {}
 
-    public record Config(int board_width, int board_height, int note_width, int note_height, List<String> colors){
-        //Java data object constructor. Colorset can output hashed organzied version.
+    public record Config(int board_width, int board_height, int note_width, int note_height, List<String> colors, Map<String, Integer> colorOrdinals){
+        //Java data object constructor. The color lookup table is built once here, a color's ordinal is its first position in colors.
+        public Config(int board_width, int board_height, int note_width, int note_height, List<String> colors){
+            this(board_width, board_height, note_width, note_height, List.copyOf(colors), ordinalsOf(colors));
+        }
+
+        private static Map<String, Integer> ordinalsOf(List<String> colors){
+            Map<String, Integer> m = new HashMap<>();
+            for (int i = 0; i < colors.size(); i++) m.putIfAbsent(colors.get(i), i);
+            return Collections.unmodifiableMap(m);
+        }
+
         public Set<String> colorSet() {
-            return new HashSet<>(colors);
+            return colorOrdinals.keySet();
         }
 
+        public String colorName(int ordinal) {
+            return colors.get(ordinal);
+        }
+
+    }
+
+    //The rest of a reply too big to build at once, pulled a piece at a time by the connection. null once it is all out.
+    public interface Chunks {
+        byte[] next();
     }
 
-    public record Response(String text, boolean closeAfterWrite){
-        //Java data object for responses.
-        public static Response ok(String line) { return new Response(line.endsWith("\n") ? line : (line + "\n"), false);}
-        public static Response okAndClose(String line) { return new Response(line.endsWith("\n") ? line : (line + "\n"), true);}
+    public record Response(byte[] bytes, boolean closeAfterWrite, boolean subscribe, Chunks more){
+        //Java data object for responses. Holds the UTF-8 encoded reply so cached board output is written as is.
+        //subscribe asks the connection to start streaming board events after writing this reply.
+        //more, when set, is written straight after bytes, before any other reply. Pushed EVENT lines may go out between its pages.
+        public Response(byte[] bytes, boolean closeAfterWrite) { this(bytes, closeAfterWrite, false, null);}
+        public static Response ok(String line) { return new Response(encode(line), false);}
+        public static Response ok(byte[] encoded) { return new Response(encoded, false);}
+        public static Response okAndClose(String line) { return new Response(encode(line), true);}
+        public static Response okAndSubscribe(String line) { return new Response(encode(line), false, true, null);}
+        public static Response okStreaming(String line, Chunks more) { return new Response(encode(line), false, false, more);}
+        public String text() { return new String(bytes, StandardCharsets.UTF_8);}
+
+        private static byte[] encode(String line) {
+            return (line.endsWith("\n") ? line : (line + "\n")).getBytes(StandardCharsets.UTF_8);
+        }
     }
 
     public enum Err {
@@ -25,7 +56,9 @@ public class Protocol {
         UNSUPPORTED_COLOR("04", "UNSUPPORTED_COLOR", "This color is not supported by the server."), 
         COMPLETE_OVERLAP("05", "COMPLETE_OVERLAP", "A note already exists at this exact position (complete overlap is not allowed)."), 
         NO_NOTE_AT_COORDINATE("06", "NO_NOTE_AT_COORDINATE", "No note exists at the given coordinate or there is existing conflict"), 
-        PIN_NOT_FOUND("07", "PIN_NOT_FOUND", "No pin exists at the given coordinate."); 
+        PIN_NOT_FOUND("07", "PIN_NOT_FOUND", "No pin exists at the given coordinate."), 
+        SERVER_BUSY("08", "SERVER_BUSY", "The server is at capacity, try again later."),
+        SHUTTING_DOWN("09", "SHUTTING_DOWN", "The server is shutting down, the change was not made."); 
         final String nn, code, msg; 
         Err(String nn, String code, String msg) { this.nn = nn; this.code = code; this.msg = msg; }
     
@@ -44,206 +77,270 @@ public class Protocol {
         );
     }
 
-    public static Response error(Err e, String commandName){
+    public enum Cmd {
+        //Command names as they appear in error lines
+        COMMAND("<COMMAND>"), POST("POST"), GET("GET"), PIN("PIN"), UNPIN("UNPIN"),
+        SHAKE("SHAKE"), CLEAR("CLEAR"), DISCONNECT("DISCONNECT"), CONNECT("CONNECT"), SUBSCRIBE("SUBSCRIBE");
+        final String label;
+        Cmd(String label) { this.label = label; }
+    }
+
+    //Every error line and fixed reply is encoded once when the class loads, so answering a bad command costs a lookup.
+    //The shared Responses are written as is and must never be modified.
+    private static final Response[][] ERRORS = new Response[Err.values().length][Cmd.values().length];
+    static {
+        for (Err e: Err.values()){
+            for (Cmd c: Cmd.values()){
+                String msg = e.msg.contains("%s") ? String.format(e.msg, c.label): e.msg;
+                ERRORS[e.ordinal()][c.ordinal()] = Response.ok(String.format("ERROR [%s] [%s] [%s]\n", e.nn, e.code, msg));
+            }
+        }
+    }
+    private static final Response OK_POSTED = Response.ok("OK POSTED\n");
+    private static final Response OK_PINNED = Response.ok("OK PINNED\n");
+    private static final Response OK_UNPINNED = Response.ok("OK UNPINNED\n");
+    private static final Response OK_CLEARED = Response.ok("OK CLEARED\n");
+    private static final Response OK_DISCONNECTING = Response.okAndClose("OK DISCONNECTING\n");
+    private static final Response OK_SUBSCRIBED = Response.okAndSubscribe("OK SUBSCRIBED\n");
+
+    public static Response error(Err e, Cmd command){
         //Returns, expected error format for client communication
-        String msg = e.msg.contains("%s") ? String.format(e.msg, commandName): e.msg;
-        return Response.ok(String.format("ERROR [%s] [%s] [%s]\n", e.nn, e.code, msg));
+        return ERRORS[e.ordinal()][command.ordinal()];
     }
 
-    
-    public static Response handleLine(String rawLine, Board board, Config cfg){
-        //Delimit and clean command to determine where to route
-        String line = rawLine.trim().toLowerCase();;
-        if (line.isEmpty()) return error (Err.INVALID_FORMAT, "<COMMAND>");
-
-        String[] parts = line.split("\\s+");
-        String cmd = parts[0];
-
-        //Take header and use switch statement to route to approperite function
-        return switch (cmd) {
-
-            case "post" -> handlePost(rawLine, parts, board, cfg);
-            case "get" -> handleGet(parts, board, cfg);
-            case "pin" -> handlePin(parts, board, cfg);
-            case "unpin" -> handleUnpin(parts, board, cfg);
-            case "shake" -> handleShake(parts, board);
-            case "clear" -> handleClear(parts, board);
-            case "disconnect" -> handleDisconnect(parts);
-            default -> error (Err.INVALID_FORMAT, "<COMMAND>");
-        };
+    //Largest page a paged GET builds in memory, see handleGet
+    private static final int MAX_PAGE = 10_000;
+
+    //Each thread reuses one tokenizer, so dispatching a command allocates nothing until a handler needs text.
+    private static final ThreadLocal<CommandTokens> TOKENS = ThreadLocal.withInitial(CommandTokens::new);
+
+    public static Response handleLine(CharSequence rawLine, Board board, Config cfg){
+        return handleLine(rawLine, board, cfg, true);
     }
 
-    private static Response handlePost(String rawLine, String[] parts, Board board, Config cfg){
-        if (parts.length < 5) return error (Err.INVALID_FORMAT, "POST");
+    //waitDurable false leaves waiting for the log to the caller, see Board.pendingDurable.
+    public static Response handleLine(CharSequence rawLine, Board board, Config cfg, boolean waitDurable){
+        //Delimit the command once to determine where to route. Keywords are matched ignoring case.
+        CommandTokens t = TOKENS.get().reset(rawLine);
+        if (t.count() == 0) return error(Err.INVALID_FORMAT, Cmd.COMMAND);
+
+        //Take header and route to approperite function. Changes are refused once shutdown began, see Board.beginWrite,
+        //and only acknowledged once the log has them.
+        Cmd change = t.is(0, "post") ? Cmd.POST : t.is(0, "pin") ? Cmd.PIN : t.is(0, "unpin") ? Cmd.UNPIN
+                : t.is(0, "shake") ? Cmd.SHAKE : t.is(0, "clear") ? Cmd.CLEAR : null;
+        if (change != null){
+            if (!board.beginWrite()) return error(Err.SHUTTING_DOWN, change);
+            Response r;
+            try {
+                r = switch (change) {
+                    case POST -> handlePost(t, board, cfg);
+                    case PIN -> handlePin(t, board);
+                    case UNPIN -> handleUnpin(t, board);
+                    case SHAKE -> handleShake(t, board);
+                    default -> handleClear(t, board);
+                };
+            } finally {
+                board.endWrite();
+            }
+            return durable(r, board, waitDurable);
+        }
+        if (t.is(0, "get")) return handleGet(t, board, cfg);
+        if (t.is(0, "disconnect")) return handleDisconnect(t);
+        if (t.is(0, "subscribe")) return handleSubscribe(t);
+        return error(Err.INVALID_FORMAT, Cmd.COMMAND);
+    }
+
+    private static Response durable(Response r, Board board, boolean waitDurable){
+        if (waitDurable) board.awaitDurable();
+        return r;
+    }
 
-        Integer x = parseNonNegInt(parts[1]); //Grab sticky position X
-        Integer y = parseNonNegInt(parts[2]); //Grab sticky position Y
+    private static Response handlePost(CommandTokens t, Board board, Config cfg){
+        if (t.count() < 5) return error(Err.INVALID_FORMAT, Cmd.POST);
 
-        if (x == null || y == null) return error (Err.INVALID_COORDINATES, "POST");
+        int x = t.parseNonNegInt(1); //Grab sticky position X
+        int y = t.parseNonNegInt(2); //Grab sticky position Y
 
-        String color = parts[3]; //Grab sticky color and verify it is within set.
-        if (!cfg.colorSet().contains(color)) return error (Err.UNSUPPORTED_COLOR, "POST");
+        if (x < 0 || y < 0) return error(Err.INVALID_COORDINATES, Cmd.POST);
 
-        int idx = scrapeMessage(rawLine, 4);
+        //Grab sticky color and verify it is within set.
+        int color = matchColor(t, t.start(3), t.end(3), cfg);
+        if (color < 0) return error(Err.UNSUPPORTED_COLOR, Cmd.POST);
 
-        if (idx < 0 || idx >= rawLine.length()) return error(Err.INVALID_FORMAT, "POST");
-        String message = rawLine.substring(idx).trim();
+        String message = t.restFrom(4);
 
         Board.Result r = board.post(x,y,color,message);
 
         return switch (r) {
-            case OK -> Response.ok("OK POSTED\n");
-            case OUT_OF_BOUNDS -> error(Err.OUT_OF_BOUNDS, "POST");
-            case COMPLETE_OVERLAP -> error(Err.COMPLETE_OVERLAP, "POST");
-            default -> error(Err.INVALID_FORMAT, "POST");
+            case OK -> OK_POSTED;
+            case OUT_OF_BOUNDS -> error(Err.OUT_OF_BOUNDS, Cmd.POST);
+            case COMPLETE_OVERLAP -> error(Err.COMPLETE_OVERLAP, Cmd.POST);
+            default -> error(Err.INVALID_FORMAT, Cmd.POST);
         };
 
     }
 
-    private static Response handleGet(String[] parts, Board board, Config cfg){
+    private static Response handleGet(CommandTokens t, Board board, Config cfg){
 
         //Determine what type of get is being called, parse and route to correct funtion in board.
-        if (parts.length == 1){
+        if (t.count() == 1){
             //Get with returns all
             return Response.ok(board.getAllNotes());
         }
 
-        String arg = parts[1];
-
-        if (arg.equals("pins") && parts.length == 2){
+        if (t.is(1, "pins") && t.count() == 2){
             return Response.ok(board.getAllPins());
         }
 
-        if (arg.startsWith("color=") && parts.length == 2){
-            String color = arg.substring("color=".length());
-            if (!cfg.colorSet().contains(color)) return error (Err.UNSUPPORTED_COLOR, "GET");
-            return Response.ok(board.getNotesByColor(color));
+        //Only what changed after the version the client last saw, see Board.changesSince
+        if (t.startsWith(1, "since=") && t.count() == 2){
+            long since = t.parseNonNegLong(t.start(1) + "since=".length(), t.end(1));
+            if (since < 0) return error(Err.INVALID_FORMAT, Cmd.GET);
+            return Response.ok(board.changesSince(since));
         }
 
-        if (arg.startsWith("contains="))
+        //GET [color=<color>] [contains=<x> <y>] [refersTo=<text>] [after=<seq>] [limit=<n>] [stream]
+        //Any mix, in any order, each at most once. A note has to pass every filter given.
+        //refersTo takes the rest of the line, so anything after it is part of the text.
+        int color = -1, x = -1, y = -1;
+        String text = null;
+        long after = -1, limit = -1;
+        boolean stream = false;
+        for (int i = 1; i < t.count(); i++){
+            if (t.startsWith(i, "color=") && color < 0){
+                color = matchColor(t, t.start(i) + "color=".length(), t.end(i), cfg);
+                if (color < 0) return error(Err.UNSUPPORTED_COLOR, Cmd.GET);
+            }
+            else if (t.startsWith(i, "contains=") && x < 0)
             {
-                String aftereq = arg.substring("contains=".length());
-            
-                String xs;
-                String ys;
-            
+                int from = t.start(i) + "contains=".length();
+                int to = t.end(i);
+
                 // supports: contains=1,1
-                if (aftereq.contains(","))
+                if (t.indexOf(',', from, to) >= 0)
                 {
-                    String[] p = aftereq.split(",");
-                    if (p.length != 2) return error(Err.INVALID_FORMAT, "GET");
-                    xs = p[0];
-                    ys = p[1];
+                    //Must be exactly two comma separated parts, trailing empty parts are dropped like String.split does
+                    int yEnd = to;
+                    while (yEnd > from && t.line().charAt(yEnd - 1) == ',') yEnd--;
+                    int comma = t.indexOf(',', from, yEnd);
+                    if (comma < 0 || t.indexOf(',', comma + 1, yEnd) >= 0) return error(Err.INVALID_FORMAT, Cmd.GET);
+                    x = t.parseNonNegInt(from, comma);
+                    y = t.parseNonNegInt(comma + 1, yEnd);
                 }
                 // supports: contains=1 1  (space separated, y is next token)
                 else
                 {
-                    xs = aftereq;
-                    if (parts.length < 3) return error(Err.INVALID_FORMAT, "GET");
-                    ys = parts[2];
+                    if (i + 1 >= t.count()) return error(Err.INVALID_FORMAT, Cmd.GET);
+                    x = t.parseNonNegInt(from, to);
+                    y = t.parseNonNegInt(++i);
                 }
-            
-                Integer x = parseNonNegInt(xs);
-                Integer y = parseNonNegInt(ys);
-            
-                if (x == null || y == null) return error(Err.INVALID_COORDINATES, "GET");
-                if (!board.isOnBoardPoint(x, y)) return error(Err.OUT_OF_BOUNDS, "GET");
-            
-                return Response.ok(board.getNotesAt(x, y));
+
+                if (x < 0 || y < 0) return error(Err.INVALID_COORDINATES, Cmd.GET);
+                if (!board.isOnBoardPoint(x, y)) return error(Err.OUT_OF_BOUNDS, Cmd.GET);
             }
-            
+            else if (t.startsWith(i, "refersto=") && text == null){
+                text = t.restFrom(i).substring("refersto=".length());
+                if (text.isEmpty()) return error(Err.INVALID_FORMAT, Cmd.GET);
+                break;
+            }
+            else if (t.startsWith(i, "after=") && after < 0){
+                after = t.parseNonNegLong(t.start(i) + "after=".length(), t.end(i));
+                if (after < 0) return error(Err.INVALID_FORMAT, Cmd.GET);
+            }
+            else if (t.startsWith(i, "limit=") && limit < 0){
+                limit = t.parseNonNegInt(t.start(i) + "limit=".length(), t.end(i));
+                if (limit <= 0) return error(Err.INVALID_FORMAT, Cmd.GET);
+            }
+            else if (t.is(i, "stream") && !stream){
+                stream = true;
+            }
+            else return error(Err.INVALID_FORMAT, Cmd.GET);
+        }
 
-        return error(Err.INVALID_FORMAT, "GET");
+        Board.Query q = new Board.Query(color, x, y, text);
+        //Paged or streamed, see Board.page. Pages go up to MAX_PAGE notes, a bigger limit is cut down and the
+        //NEXT cursor carries on from there.
+        if (stream) return Response.okStreaming("OK STREAM", board.stream(Math.max(0, after), q, limit < 0 ? Long.MAX_VALUE : limit));
+        if (after >= 0 || limit >= 0) return Response.ok(board.getPage(Math.max(0, after), q, (int) Math.min(limit < 0 ? MAX_PAGE : limit, MAX_PAGE)));
 
+        //A single filter has a cached answer, a mix goes through the planner
+        if (text == null && x < 0) return Response.ok(board.getNotesByColor(color));
+        if (text == null && color < 0) return Response.ok(board.getNotesAt(x, y));
+        return Response.ok(board.query(q));
     }
 
-    private static Response handlePin(String[] parts, Board board, Config cfg){
+    private static Response handlePin(CommandTokens t, Board board){
         //Parse Pin Command
-        if (parts.length != 3) return error (Err.INVALID_FORMAT, "PIN");
-        Integer x = parseNonNegInt(parts[1]);
-        Integer y = parseNonNegInt(parts[2]);
+        if (t.count() != 3) return error(Err.INVALID_FORMAT, Cmd.PIN);
+        int x = t.parseNonNegInt(1);
+        int y = t.parseNonNegInt(2);
         
         //Check for errors
-        if (x == null || y == null) return error (Err.INVALID_COORDINATES, "PIN");
-        if (!board.isOnBoardPoint(x,y)) return error(Err.OUT_OF_BOUNDS, "PIN");
+        if (x < 0 || y < 0) return error(Err.INVALID_COORDINATES, Cmd.PIN);
+        if (!board.isOnBoardPoint(x,y)) return error(Err.OUT_OF_BOUNDS, Cmd.PIN);
 
         //Call board Pin function and give client response.
         Board.Result r = board.pin(x,y);
         return switch (r) {
-            case OK -> Response.ok("OK PINNED\n");
-            case NO_NOTE_AT_COORDINATE -> error(Err.NO_NOTE_AT_COORDINATE, "PIN");
-            default -> error (Err.INVALID_FORMAT, "PIN");
+            case OK -> OK_PINNED;
+            case NO_NOTE_AT_COORDINATE -> error(Err.NO_NOTE_AT_COORDINATE, Cmd.PIN);
+            default -> error(Err.INVALID_FORMAT, Cmd.PIN);
         };
     }
 
-    private static Response handleUnpin(String [] parts, Board board, Config cfg){
+    private static Response handleUnpin(CommandTokens t, Board board){
         //PArse
-        if (parts.length != 3) return error (Err.INVALID_FORMAT, "UNPIN");
-        Integer x = parseNonNegInt(parts[1]);
-        Integer y = parseNonNegInt(parts[2]);
+        if (t.count() != 3) return error(Err.INVALID_FORMAT, Cmd.UNPIN);
+        int x = t.parseNonNegInt(1);
+        int y = t.parseNonNegInt(2);
         
         //Error Catch
-        if (x == null || y == null) return error (Err.INVALID_COORDINATES, "UNPIN");
-        if (!board.isOnBoardPoint(x,y)) return error(Err.OUT_OF_BOUNDS, "UNPIN");
+        if (x < 0 || y < 0) return error(Err.INVALID_COORDINATES, Cmd.UNPIN);
+        if (!board.isOnBoardPoint(x,y)) return error(Err.OUT_OF_BOUNDS, Cmd.UNPIN);
 
         //Call board Unpin function, relay to client result.
         Board.Result r = board.unpin(x,y);
         return switch (r) {
-            case OK -> Response.ok("OK UNPINNED\n");
-            case PIN_NOT_FOUND -> error(Err.PIN_NOT_FOUND, "UNPIN");
-            default -> error (Err.INVALID_FORMAT, "UNPIN");
+            case OK -> OK_UNPINNED;
+            case PIN_NOT_FOUND -> error(Err.PIN_NOT_FOUND, Cmd.UNPIN);
+            default -> error(Err.INVALID_FORMAT, Cmd.UNPIN);
         };
     }
 
 
     //Shake, clear, disconnect dont require much parsing or error checking so their functions are all relativly atomic.
-    private static Response handleShake(String [] parts, Board board){
-        if (parts.length != 1) return error (Err.INVALID_FORMAT, "SHAKE");
+    private static Response handleShake(CommandTokens t, Board board){
+        if (t.count() != 1) return error(Err.INVALID_FORMAT, Cmd.SHAKE);
         int removed = board.shake();
         return Response.ok("OK SHAKEN " + removed + "\n");
 
     }
 
-    private static Response handleClear (String [] parts, Board board){
-        if (parts.length != 1) return error (Err.INVALID_FORMAT, "CLEAR");
+    private static Response handleClear (CommandTokens t, Board board){
+        if (t.count() != 1) return error(Err.INVALID_FORMAT, Cmd.CLEAR);
         board.clear();
-        return Response.ok("OK CLEARED\n");
+        return OK_CLEARED;
     }
 
-    private static Response handleDisconnect(String[] parts){
-        if (parts.length != 1) return error (Err.INVALID_FORMAT, "DISCONNECT");
+    private static Response handleDisconnect(CommandTokens t){
+        if (t.count() != 1) return error(Err.INVALID_FORMAT, Cmd.DISCONNECT);
 
-        return Response.okAndClose("OK DISCONNECTING\n");
+        return OK_DISCONNECTING;
     }
 
-    private static Integer parseNonNegInt(String s){
-        //Helper function to parse an string to int
-        try {
-            int v = Integer.parseInt(s.trim());
-            return v < 0 ? null : v; 
-            
-        } catch (Exception e){
-            return null;
-        }
+    private static Response handleSubscribe(CommandTokens t){
+        //From here on the connection also gets EVENT <version> POSTED/PINNED/UNPINNED/SHAKEN/CLEARED lines between replies,
+        //and between the pages of a GET stream, and EVENT RESYNC if it fell too far behind and should GET since= its
+        //last version. Subscribing twice changes nothing.
+        if (t.count() != 1) return error(Err.INVALID_FORMAT, Cmd.SUBSCRIBE);
+        return OK_SUBSCRIBED;
     }
 
-    private static int scrapeMessage(String rawLine, int tokenCount){
-        //Helper function to scrape posted messages
-        int seenTokens = 0;
-        boolean inToken = false;
-
-        for (int i = 0; i < rawLine.length(); i++){
-            char c = rawLine.charAt(i);
-            boolean isSpace = Character.isWhitespace(c);
-            if (!isSpace && !inToken) {
-                inToken = true;
-                seenTokens ++;
-                if (seenTokens == tokenCount + 1) return i;
-            } else if (isSpace && inToken){
-                inToken = false;
-            }
-        }
-        return -1;
+    private static int matchColor(CommandTokens t, int from, int to, Config cfg){
+        //Helper function returning the ordinal of the configured (lowercase) color equal to the text ignoring case, or -1.
+        //One lookup in the table Config builds, instead of comparing against every color in turn.
+        Integer ord = cfg.colorOrdinals().get(t.lower(from, to));
+        return ord == null ? -1 : ord;
     }
 
 
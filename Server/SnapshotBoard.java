@@ -0,0 +1,439 @@
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+public class SnapshotBoard extends Board {
+    //Copy-on-write storage mode. Writers serialize on one lock and publish an immutable Snapshot through a volatile field.
+    //Readers grab the current snapshot and never lock, so GETs do not contend with POST and PIN traffic.
+    //Note pins are only ever touched by writers, readers see pins through the snapshot's pin list.
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    //Prefix view over an append-only array. Appends fill the slot past size and return a longer Slice,
+    //so older slices already handed to readers never see the new element. Removals always copy.
+    private static final class Slice<T> {
+        private static final Slice<?> EMPTY = new Slice<>(new Object[0], 0);
+        private final Object[] items;
+        private final int size;
+
+        private Slice(Object[] items, int size){
+            this.items = items;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Slice<T> empty() {return (Slice<T>) EMPTY;}
+
+        Slice<T> append(T t){
+            Object[] a = size < items.length ? items : Arrays.copyOf(items, Math.max(8, size * 2));
+            a[size] = t;
+            return new Slice<>(a, size + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        Slice<T> without(Predicate<T> drop){
+            Object[] a = new Object[size];
+            int k = 0;
+            for (int i = 0; i < size; i++) if (!drop.test((T) items[i])) a[k++] = items[i];
+            return k == size ? this : new Slice<>(a, k);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> view() {return (List<T>) Arrays.asList(items).subList(0, size);}
+    }
+
+    //Persistent map from long keys: a hash trie of 32 way nodes. put and remove copy only the nodes on the path to the
+    //key, so a new version costs a few small arrays and every older version stays intact for the readers holding it.
+    //The multiply spreads all 64 key bits and is one to one, so two keys always part ways within 13 levels.
+    private static final class Trie<V> {
+        private static final Trie<?> EMPTY = new Trie<>(null);
+        private record Leaf(long key, long hash, Object value) {}
+        private final Object[] root;
+
+        private Trie(Object[] root){
+            this.root = root;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Trie<V> empty() {return (Trie<V>) EMPTY;}
+
+        private static long hash(long key) {return key * 0x9E3779B97F4A7C15L;}
+
+        @SuppressWarnings("unchecked")
+        V get(long key){
+            long h = hash(key);
+            Object[] node = root;
+            for (int shift = 0; node != null; shift += 5){
+                Object e = node[(int) (h >>> shift) & 31];
+                if (e instanceof Leaf l) return l.key() == key ? (V) l.value() : null;
+                node = (Object[]) e;
+            }
+            return null;
+        }
+
+        Trie<V> put(long key, V value){
+            return new Trie<>(put(root, 0, new Leaf(key, hash(key), value)));
+        }
+
+        Trie<V> remove(long key){
+            if (root == null) return this;
+            Object[] r = remove(root, 0, hash(key), key);
+            return r == root ? this : new Trie<>(r);
+        }
+
+        private static Object[] put(Object[] node, int shift, Leaf leaf){
+            Object[] copy = node == null ? new Object[32] : node.clone();
+            int i = (int) (leaf.hash() >>> shift) & 31;
+            Object e = copy[i];
+            if (e == null || (e instanceof Leaf l && l.key() == leaf.key())) copy[i] = leaf;
+            else if (e instanceof Leaf l) copy[i] = put(put(null, shift + 5, l), shift + 5, leaf);
+            else copy[i] = put((Object[]) e, shift + 5, leaf);
+            return copy;
+        }
+
+        //Returns node itself when the key was not there, null when the node ends up empty.
+        private static Object[] remove(Object[] node, int shift, long h, long key){
+            int i = (int) (h >>> shift) & 31;
+            Object e = node[i], replaced;
+            if (e == null) return node;
+            if (e instanceof Leaf l){
+                if (l.key() != key) return node;
+                replaced = null;
+            } else {
+                replaced = remove((Object[]) e, shift + 5, h, key);
+                if (replaced == e) return node;
+            }
+            Object[] copy = node.clone();
+            copy[i] = replaced;
+            for (Object o: copy) if (o != null) return copy;
+            return null;
+        }
+    }
+
+    //Everything a GET needs, frozen at one version, indexes included, so every kind of GET agrees on which notes exist.
+    //Grid cells are Note arrays replaced whole on every change. Message tokens (see TextIndex) map to the notes that have
+    //them in posting order, as Slices so a POST appends without copying the list. Cache slots are per snapshot so they
+    //never need invalidating.
+    private record Snapshot(long version, Slice<Note> notes, List<Slice<Note>> byColor, Slice<Pin> pins,
+                            Trie<Note[]> grid, Trie<Slice<Note>> text, AtomicReferenceArray<byte[]> cache) {}
+    private static final int CACHE_ALL = 0, CACHE_PINS = 1, CACHE_COLOR = 2;
+
+    private volatile Snapshot current;
+
+    //Writer-only state, guarded by writeLock.
+    private long seq = 0;
+    private final LongHashSet origins = new LongHashSet();
+    private final LongLinkedSet pinSet = new LongLinkedSet();
+    private final Set<Note> unpinned = new LinkedHashSet<>();
+
+    public SnapshotBoard (Protocol.Config cfg){
+        super(cfg);
+        publish(0, Slice.empty(), emptyColors(), Slice.empty(), Trie.empty(), Trie.empty());
+    }
+
+    private List<Slice<Note>> emptyColors(){
+        List<Slice<Note>> l = new ArrayList<>();
+        for (int i = 0; i < colorCount(); i++) l.add(Slice.empty());
+        return Collections.unmodifiableList(l);
+    }
+
+    private void publish(long version, Slice<Note> notes, List<Slice<Note>> byColor, Slice<Pin> pins, Trie<Note[]> grid, Trie<Slice<Note>> text){
+        current = new Snapshot(version, notes, byColor, pins, grid, text, new AtomicReferenceArray<>(CACHE_COLOR + colorCount()));
+    }
+
+    private Trie<Note[]> gridAdd(Trie<Note[]> grid, Note n, List<Long> cells){
+        cells.clear();
+        gridCells(n, cells);
+        for (Long c: cells){
+            Note[] cell = grid.get(c);
+            Note[] copy = cell == null ? new Note[1] : Arrays.copyOf(cell, cell.length + 1);
+            copy[copy.length - 1] = n;
+            grid = grid.put(c, copy);
+        }
+        return grid;
+    }
+
+    private static Trie<Slice<Note>> textAdd(Trie<Slice<Note>> text, Note n){
+        for (long t: TextIndex.tokens(n.message())){
+            Slice<Note> l = text.get(t);
+            text = text.put(t, (l == null ? Slice.<Note>empty() : l).append(n));
+        }
+        return text;
+    }
+
+    //Token lists for a refersTo= search, shortest first. null when the text is too short to have tokens.
+    private static List<List<Note>> textLists(Snapshot snap, String s){
+        if (!TextIndex.indexable(s)) return null;
+        List<List<Note>> lists = new ArrayList<>();
+        for (long t: TextIndex.tokens(s)){
+            Slice<Note> l = snap.text().get(t);
+            lists.add(l == null ? Collections.emptyList() : l.view());
+        }
+        lists.sort(Comparator.comparingInt(List::size));
+        return lists;
+    }
+
+    //Notes on every token list, in posting order. Same intersection as TextIndex.candidates, over note lists.
+    private List<Note> textCandidates(List<List<Note>> lists){
+        List<Note> found = new ArrayList<>();
+        for (Note n: lists.get(0)){
+            boolean onAll = true;
+            for (int k = 1; k < lists.size() && onAll; k++){
+                List<Note> l = lists.get(k);
+                int i = firstAfter(l, n.seq() - 1);
+                onAll = i < l.size() && l.get(i) == n;
+            }
+            if (onAll) found.add(n);
+        }
+        return found;
+    }
+
+    private byte[] cachedOr(Snapshot s, int slot, List<Note> notes){
+        byte[] hit = s.cache().get(slot);
+        if (hit != null) return hit;
+        byte[] built = renderNotes(notes);
+        s.cache().set(slot, built);
+        return built;
+    }
+
+    @Override
+    public Result post(int x, int y, int color, String message){
+        writeLock.lock(); //Aquires lock
+        try {
+            //Determines if note is in valid position
+            if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
+            if (origins.contains(pack(x, y))) return Result.COMPLETE_OVERLAP;
+
+            Note n = new Note(x, y, color, message, ++seq);
+            origins.add(pack(x, y));
+            unpinned.add(n);
+
+            Snapshot s = current;
+            List<Slice<Note>> byColor = new ArrayList<>(s.byColor());
+            byColor.set(color, byColor.get(color).append(n));
+            logPost(x, y, color, message);
+            publish(s.version() + 1, s.notes().append(n), Collections.unmodifiableList(byColor), s.pins(),
+                    gridAdd(s.grid(), n, new ArrayList<>(4)), textAdd(s.text(), n));
+            return Result.OK;
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result pin(int x, int y){
+        writeLock.lock(); //Aquires lock
+        try {
+            boolean pinnedAny = false;
+            long p = pack(x, y);
+            Snapshot s = current;
+            Note[] cell = s.grid().get(cellKey(x, y));
+            if (cell != null){
+                for (Note n: cell){
+                    if (isPinInNote(n, x, y) && n.addPin(p)){
+                        unpinned.remove(n);
+                        pinnedAny = true;
+                    }
+                }
+            }
+            if (!pinnedAny) return Result.NO_NOTE_AT_COORDINATE;
+
+            //Only a brand new pin changes the pin list, but the snapshot is republished either way so versions stay in step
+            Slice<Pin> pins = pinSet.add(p) ? s.pins().append(new Pin(x, y)) : s.pins();
+            logPin(x, y);
+            publish(s.version() + 1, s.notes(), s.byColor(), pins, s.grid(), s.text());
+            return Result.OK;
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result unpin(int x, int y){
+        writeLock.lock(); //Aquires lock
+        try {
+            long p = pack(x, y);
+            if (!pinSet.remove(p)) return Result.PIN_NOT_FOUND;
+            //Only notes covering the point can be holding the pin
+            Snapshot s = current;
+            Note[] cell = s.grid().get(cellKey(x, y));
+            for (Note n: cell){
+                if (n.removePin(p) && !n.hasAnyPins()) unpinned.add(n);
+            }
+            logUnpin(x, y);
+            publish(s.version() + 1, s.notes(), s.byColor(), s.pins().without(q -> q.x() == x && q.y() == y), s.grid(), s.text());
+            return Result.OK;
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public int shake(){
+        writeLock.lock(); //Aquires lock
+        try {
+            //Remove all notes not attached to board through force. Unpinned set already knows which ones.
+            int removed = unpinned.size();
+            if (removed == 0) return 0;
+
+            Set<Long> cells = new HashSet<>();
+            boolean[] colorsTouched = new boolean[colorCount()];
+            for (Note n: unpinned){
+                origins.remove(pack(n.x(), n.y()));
+                gridCells(n, cells);
+                colorsTouched[n.color()] = true;
+            }
+            Snapshot s = current;
+            Trie<Note[]> grid = s.grid();
+            for (Long c: cells){
+                Note[] kept = Arrays.stream(grid.get(c)).filter(n -> !unpinned.contains(n)).toArray(Note[]::new);
+                grid = kept.length == 0 ? grid.remove(c) : grid.put(c, kept);
+            }
+
+            Set<Long> tokens = new HashSet<>();
+            for (Note n: unpinned) for (long t: TextIndex.tokens(n.message())) tokens.add(t);
+            Trie<Slice<Note>> text = s.text();
+            for (Long t: tokens){
+                Slice<Note> kept = text.get(t).without(unpinned::contains);
+                text = kept.size == 0 ? text.remove(t) : text.put(t, kept);
+            }
+
+            List<Slice<Note>> byColor = new ArrayList<>(s.byColor());
+            for (int i = 0; i < colorsTouched.length; i++) if (colorsTouched[i]) byColor.set(i, byColor.get(i).without(unpinned::contains));
+            logShake(removed);
+            publish(s.version() + 1, s.notes().without(unpinned::contains), Collections.unmodifiableList(byColor), s.pins(), grid, text);
+
+            unpinned.clear();
+            return removed;
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void clear(){
+        writeLock.lock(); //Aquires lock
+        try {
+            origins.clear();
+            pinSet.clear();
+            unpinned.clear();
+            logClear();
+            publish(current.version() + 1, Slice.empty(), emptyColors(), Slice.empty(), Trie.empty(), Trie.empty());
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public BoardImage capture(Runnable atomically){
+        writeLock.lock(); //Aquires lock, note pins are writer-only state
+        try {
+            atomically.run();
+            Snapshot s = current;
+            BoardImage img = new BoardImage(s.notes().view().size());
+            for (Note n: s.notes().view()) img.addNote(n.x(), n.y(), n.color(), n.message(), n.seq(), n.pins());
+            img.setPins(pinSet.toArray());
+            img.setSeq(seq);
+            return img;
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public void restore(BoardImage img){
+        writeLock.lock(); //Aquires lock
+        try {
+            Snapshot s = current;
+            Slice<Note> notes = s.notes();
+            List<Slice<Note>> byColor = new ArrayList<>(s.byColor());
+            Trie<Note[]> grid = s.grid();
+            Trie<Slice<Note>> text = s.text();
+            List<Long> covered = new ArrayList<>(4);
+            for (int i = 0; i < img.count(); i++){
+                Note n = new Note(img.x(i), img.y(i), img.color(i), img.message(i), img.seq(i));
+                for (long p: img.pins(i)) n.addPin(p);
+                notes = notes.append(n);
+                byColor.set(n.color(), byColor.get(n.color()).append(n));
+                origins.add(pack(n.x(), n.y()));
+                if (!n.hasAnyPins()) unpinned.add(n);
+                grid = gridAdd(grid, n, covered);
+                text = textAdd(text, n);
+            }
+            Slice<Pin> pins = s.pins();
+            for (long p: img.pins()){
+                pinSet.add(p);
+                pins = pins.append(new Pin((int) (p >> 32), (int) p));
+            }
+            seq = img.seq();
+            publish(s.version() + 1, notes, Collections.unmodifiableList(byColor), pins, grid, text);
+        } finally {
+            writeLock.unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getAllNotes(){
+        Snapshot s = current;
+        return cachedOr(s, CACHE_ALL, s.notes().view());
+    }
+
+    @Override
+    public byte[] getNotesByColor(int color){
+        Snapshot s = current;
+        if (!isColor(color)) return renderNotes(Collections.emptyList());
+        return cachedOr(s, CACHE_COLOR + color, s.byColor().get(color).view());
+    }
+
+    @Override
+    public byte[] getNotesAt(int x, int y){
+        List<Note> filtered = new ArrayList<>();
+        Note[] cell = current.grid().get(cellKey(x, y));
+        if (cell != null) for (Note n: cell) if (isPinInNote(n, x, y)) filtered.add(n);
+        return renderNotes(filtered);
+    }
+
+    @Override
+    public Page page(long after, Query q, int max, ByteArrayOutputStream out){
+        Snapshot s = current;
+        if (q.hasColor() && !isColor(q.color())) return new Page(0, after, false);
+        List<List<Note>> lists = q.hasText() ? textLists(s, q.text()) : null;
+        List<Note> list;
+        if (plan(q, q.hasColor() ? s.byColor().get(q.color()).size : -1, lists == null ? -1 : lists.get(0).size()) == Source.TEXT){
+            list = textCandidates(lists);
+        } else {
+            list = q.hasColor() ? s.byColor().get(q.color()).view() : s.notes().view();
+        }
+        return pageOf(list.listIterator(firstAfter(list, after)), after, q, max, out);
+    }
+
+    @Override
+    public byte[] query(Query q){
+        Snapshot s = current;
+        if (q.hasColor() && !isColor(q.color())) return renderNotes(Collections.emptyList());
+        List<List<Note>> lists = q.hasText() ? textLists(s, q.text()) : null;
+        List<Note> source = switch (plan(q, q.hasColor() ? s.byColor().get(q.color()).size : -1, lists == null ? -1 : lists.get(0).size())) {
+            case TEXT -> textCandidates(lists);
+            case POINT -> {
+                Note[] cell = s.grid().get(cellKey(q.x(), q.y()));
+                yield cell == null ? Collections.emptyList() : Arrays.asList(cell);
+            }
+            case COLOR -> s.byColor().get(q.color()).view();
+            case ALL -> s.notes().view();
+        };
+        List<Note> found = new ArrayList<>();
+        for (Note n: source) if (matches(q, n)) found.add(n);
+        return renderNotes(found);
+    }
+
+    @Override
+    public byte[] getAllPins(){
+        Snapshot s = current;
+        byte[] hit = s.cache().get(CACHE_PINS);
+        if (hit != null) return hit;
+        byte[] built = renderPins(s.pins().view());
+        s.cache().set(CACHE_PINS, built);
+        return built;
+    }
+}
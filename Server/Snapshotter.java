@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class Snapshotter implements Runnable {
+    //Background thread that saves the board as a BoardImage every interval, then deletes the log segments the image covers.
+    //Writers are only held off while the engine copies references and the log is cut, not while the file is written.
+
+    private final Board board;
+    private final WriteAheadLog wal;
+    private final Path path;
+    private final Protocol.Config cfg;
+    private final long intervalMs;
+    private long savedAt; //Log records appended when the last snapshot was cut
+
+    public Snapshotter(Board board, WriteAheadLog wal, Path path, Protocol.Config cfg, long intervalMs){
+        this.board = board;
+        this.wal = wal;
+        this.path = path;
+        this.cfg = cfg;
+        this.intervalMs = intervalMs;
+    }
+
+    public void start(){
+        Thread t = new Thread(this, "snapshotter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run(){
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+                snapshot();
+            } catch (InterruptedException e){
+                return;
+            } catch (IOException e){
+                System.err.println("snapshot failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //Writes a snapshot unless nothing was logged since the last one.
+    public synchronized void snapshot() throws IOException {
+        if (wal.appended() == savedAt) return;
+        long[] cut = new long[1];
+        long[] appended = new long[1];
+        BoardImage img = board.capture(() -> {
+            cut[0] = wal.rotate();
+            appended[0] = wal.appended();
+        });
+        img.setSegment(cut[0]);
+        img.write(path, cfg);
+        savedAt = appended[0];
+        wal.deleteThrough(cut[0]);
+    }
+}
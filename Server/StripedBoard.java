@@ -0,0 +1,424 @@
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class StripedBoard extends Board {
+    //Region partitioned storage mode. The grid is split into REGION_SIDE x REGION_SIDE blocks of cells, each with its own rw lock.
+    //POST locks only the regions its note covers and PIN/UNPIN only the region holding the point, so clients in different
+    //areas write in parallel. Whole board operations (SHAKE, CLEAR, full GETs) take every stripe in index order.
+    private static final int REGION_SIDE = 8;
+
+    private final int regionCols, regionRows;
+    private final int cellsPerRegionX, cellsPerRegionY;
+    private final Region[] regions;
+
+    //Everything keyed by position lives in the region that owns the position and is guarded by that region's lock.
+    private static final class Region {
+        final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+        final Map<Long, List<Note>> grid = new HashMap<>();
+        final LongHashSet origins = new LongHashSet();
+        //Pins placed in this region, mapped to their global placement number. The notes a pin holds up are the ones in its cell that have it.
+        final Map<Pin, Long> pinSeqs = new HashMap<>();
+        //Message tokens to seqs for GET refersTo=, over the notes whose origin is in this region. Posts in different
+        //regions index in parallel, a text query holds every read lock and merges what each region finds.
+        final TextIndex text = new TextIndex();
+    }
+
+    //Board wide orderings are concurrent maps keyed by a global counter, so writers in different regions never share a lock.
+    private final AtomicLong seq = new AtomicLong();
+    private final Object logOrder = new Object();
+    private final AtomicLong pinSeq = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Note> notes = new ConcurrentSkipListMap<>();
+    private final List<ConcurrentSkipListMap<Long, Note>> byColor = new ArrayList<>();
+    private final ConcurrentSkipListMap<Long, Pin> pins = new ConcurrentSkipListMap<>();
+    private final Set<Note> unpinned = ConcurrentHashMap.newKeySet();
+
+    //Bumped under a region write lock. Whole board readers hold every read lock, so the value is stable for them.
+    private final AtomicLong version = new AtomicLong();
+    private record Cached(long version, byte[] bytes) {}
+    private static final int CACHE_ALL = 0, CACHE_PINS = 1, CACHE_COLOR = 2;
+    private final Cached[] cache;
+
+    public StripedBoard (Protocol.Config cfg){
+        super(cfg);
+        int gridCols = (cfg.board_width() + cfg.note_width() - 1) / cfg.note_width();
+        int gridRows = (cfg.board_height() + cfg.note_height() - 1) / cfg.note_height();
+        this.cellsPerRegionX = Math.max(1, (gridCols + REGION_SIDE - 1) / REGION_SIDE);
+        this.cellsPerRegionY = Math.max(1, (gridRows + REGION_SIDE - 1) / REGION_SIDE);
+        this.regionCols = Math.max(1, (gridCols + cellsPerRegionX - 1) / cellsPerRegionX);
+        this.regionRows = Math.max(1, (gridRows + cellsPerRegionY - 1) / cellsPerRegionY);
+        this.regions = new Region[regionCols * regionRows];
+        for (int i = 0; i < regions.length; i++) regions[i] = new Region();
+        for (int i = 0; i < colorCount(); i++) byColor.add(new ConcurrentSkipListMap<>());
+        this.cache = new Cached[CACHE_COLOR + colorCount()];
+    }
+
+    //Region helpers. A region index is derived from the grid cell so a cell never straddles two regions.
+    private int regionOfPoint(int px, int py){
+        int rx = (px / cfg.note_width()) / cellsPerRegionX;
+        int ry = (py / cfg.note_height()) / cellsPerRegionY;
+        return ry * regionCols + rx;
+    }
+
+    private int regionOfCell(long cell){
+        int rx = (int) (cell >>> 32) / cellsPerRegionX;
+        int ry = (int) cell / cellsPerRegionY;
+        return ry * regionCols + rx;
+    }
+
+    //Regions a note at (x, y) covers, ascending so every writer locks in the same order.
+    private int[] regionsOfNote(int x, int y){
+        int rx0 = (x / cfg.note_width()) / cellsPerRegionX, rx1 = ((x + cfg.note_width() - 1) / cfg.note_width()) / cellsPerRegionX;
+        int ry0 = (y / cfg.note_height()) / cellsPerRegionY, ry1 = ((y + cfg.note_height() - 1) / cfg.note_height()) / cellsPerRegionY;
+        int[] out = new int[(rx1 - rx0 + 1) * (ry1 - ry0 + 1)];
+        int k = 0;
+        for (int ry = ry0; ry <= ry1; ry++) for (int rx = rx0; rx <= rx1; rx++) out[k++] = ry * regionCols + rx;
+        return out;
+    }
+
+    private void lockAllRead(){ for (Region r: regions) r.rw.readLock().lock(); }
+    private void unlockAllRead(){ for (int i = regions.length - 1; i >= 0; i--) regions[i].rw.readLock().unlock(); }
+    private void lockAllWrite(){ for (Region r: regions) r.rw.writeLock().lock(); }
+    private void unlockAllWrite(){ for (int i = regions.length - 1; i >= 0; i--) regions[i].rw.writeLock().unlock(); }
+
+    //Caller holds every read lock. A region's estimate bounds its own candidates, so the board's is their sum.
+    private int textSize(Query q){
+        if (!q.hasText() || !TextIndex.indexable(q.text())) return -1;
+        long total = 0;
+        for (Region r: regions) total += r.text.estimate(q.text());
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    //Caller holds every read lock. Every region's candidates merged back into one ascending list of seqs.
+    private long[] textCandidates(String text){
+        long[][] parts = new long[regions.length][];
+        int n = 0;
+        for (int i = 0; i < regions.length; i++){
+            parts[i] = regions[i].text.candidates(text);
+            n += parts[i].length;
+        }
+        long[] out = new long[n];
+        int k = 0;
+        for (long[] part: parts){
+            System.arraycopy(part, 0, out, k, part.length);
+            k += part.length;
+        }
+        Arrays.sort(out);
+        return out;
+    }
+
+    private List<Note> gridCandidates(int px, int py){
+        List<Note> cell = regions[regionOfPoint(px, py)].grid.get(cellKey(px, py));
+        return cell == null ? Collections.emptyList() : cell;
+    }
+
+    //Returns the cached response for a slot if nothing changed since it was built. Caller holds every read lock.
+    private byte[] cached(int slot){
+        Cached c = cache[slot];
+        return c != null && c.version() == version.get() ? c.bytes() : null;
+    }
+
+    private byte[] remember(int slot, byte[] bytes){
+        cache[slot] = new Cached(version.get(), bytes);
+        return bytes;
+    }
+
+    @Override
+    public Result post(int x, int y, int color, String message){
+        //Determines if note is in valid position before touching any lock
+        if (!noteFits(x, y)) return Result.OUT_OF_BOUNDS;
+
+        int[] locked = regionsOfNote(x, y);
+        for (int r: locked) regions[r].rw.writeLock().lock(); //Aquires locks
+        try {
+            Region home = regions[regionOfPoint(x, y)];
+            if (home.origins.contains(pack(x, y))) return Result.COMPLETE_OVERLAP;
+
+            //The seq is taken in the same step that logs the post. Posts in different stripes then reach the log in seq
+            //order, and a replay, which numbers notes in log order, gives every note back the seq it had.
+            //The log and the event history already put every change in one order, so this adds no new point of contention.
+            Note n;
+            synchronized (logOrder) {
+                n = new Note(x, y, color, message, seq.incrementAndGet());
+                logPost(x, y, color, message);
+            }
+            home.origins.add(pack(x, y));
+            List<Long> cells = new ArrayList<>(4);
+            gridCells(n, cells);
+            for (Long c: cells) regions[regionOfCell(c)].grid.computeIfAbsent(c, k -> new ArrayList<>()).add(n);
+
+            notes.put(n.seq(), n);
+            byColor.get(color).put(n.seq(), n);
+            unpinned.add(n);
+            home.text.add(n.seq(), message);
+            version.incrementAndGet();
+            return Result.OK;
+        } finally {
+            for (int i = locked.length - 1; i >= 0; i--) regions[locked[i]].rw.writeLock().unlock(); //Releases locks
+        }
+    }
+
+    @Override
+    public Result pin(int x, int y){
+        if (!isOnBoardPoint(x, y)) return Result.NO_NOTE_AT_COORDINATE;
+        Region region = regions[regionOfPoint(x, y)];
+        region.rw.writeLock().lock(); //Aquires lock
+        try {
+            boolean pinnedAny = false;
+            long p = pack(x, y);
+            for (Note n: gridCandidates(x, y)){
+                if (!isPinInNote(n, x, y)) continue;
+                //A note can straddle regions and be pinned from either side, so its pin set is guarded by the note itself
+                synchronized (n){
+                    if (!n.addPin(p)) continue;
+                    unpinned.remove(n);
+                }
+                pinnedAny = true;
+            }
+            if (!pinnedAny) return Result.NO_NOTE_AT_COORDINATE;
+            Pin placed = new Pin(x, y);
+            //Pins in other regions number themselves concurrently, the log has to see them in the same order
+            synchronized (pins){
+                if (!region.pinSeqs.containsKey(placed)){
+                    long s = pinSeq.incrementAndGet();
+                    region.pinSeqs.put(placed, s);
+                    pins.put(s, placed);
+                }
+                logPin(x, y);
+            }
+            version.incrementAndGet();
+            return Result.OK;
+        } finally {
+            region.rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public Result unpin(int x, int y){
+        if (!isOnBoardPoint(x, y)) return Result.PIN_NOT_FOUND;
+        Region region = regions[regionOfPoint(x, y)];
+        region.rw.writeLock().lock(); //Aquires lock
+        try {
+            Long s = region.pinSeqs.remove(new Pin(x, y));
+            if (s == null) return Result.PIN_NOT_FOUND;
+            pins.remove(s);
+            long p = pack(x, y);
+            for (Note n: gridCandidates(x, y)){
+                synchronized (n){
+                    if (n.removePin(p) && !n.hasAnyPins()) unpinned.add(n);
+                }
+            }
+            logUnpin(x, y);
+            version.incrementAndGet();
+            return Result.OK;
+        } finally {
+            region.rw.writeLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public int shake(){
+        lockAllWrite(); //Aquires every stripe
+        try {
+            int removed = unpinned.size();
+            if (removed == 0) return 0;
+            Set<Long> cells = new HashSet<>();
+            LongHashSet seqs = new LongHashSet(removed);
+            //Messages grouped by the region whose text index has them
+            List<List<String>> messages = new ArrayList<>(Collections.nCopies(regions.length, null));
+            for (Note n: unpinned){
+                int home = regionOfPoint(n.x(), n.y());
+                regions[home].origins.remove(pack(n.x(), n.y()));
+                gridCells(n, cells);
+                notes.remove(n.seq());
+                byColor.get(n.color()).remove(n.seq());
+                seqs.add(n.seq());
+                if (messages.get(home) == null) messages.set(home, new ArrayList<>());
+                messages.get(home).add(n.message());
+            }
+            for (int i = 0; i < regions.length; i++){
+                if (messages.get(i) != null) regions[i].text.removeAll(seqs, messages.get(i));
+            }
+            for (Long c: cells){
+                Map<Long, List<Note>> grid = regions[regionOfCell(c)].grid;
+                List<Note> cell = grid.get(c);
+                cell.removeIf(unpinned::contains);
+                if (cell.isEmpty()) grid.remove(c);
+            }
+            unpinned.clear();
+            logShake(removed);
+            version.incrementAndGet();
+            return removed;
+        } finally {
+            unlockAllWrite(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public void clear(){
+        lockAllWrite(); //Aquires every stripe
+        try {
+            for (Region r: regions){
+                r.grid.clear();
+                r.origins.clear();
+                r.pinSeqs.clear();
+                r.text.clear();
+            }
+            notes.clear();
+            for (Map<Long, Note> m: byColor) m.clear();
+            pins.clear();
+            unpinned.clear();
+            logClear();
+            version.incrementAndGet();
+        } finally {
+            unlockAllWrite(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public BoardImage capture(Runnable atomically){
+        lockAllRead(); //Aquires every stripe, which keeps every writer out
+        try {
+            atomically.run();
+            BoardImage img = new BoardImage(notes.size());
+            for (Note n: notes.values()) img.addNote(n.x(), n.y(), n.color(), n.message(), n.seq(), n.pins());
+            long[] packed = new long[pins.size()];
+            int k = 0;
+            for (Pin p: pins.values()) packed[k++] = pack(p.x(), p.y());
+            img.setPins(packed);
+            img.setSeq(seq.get());
+            return img;
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public void restore(BoardImage img){
+        lockAllWrite(); //Aquires every stripe
+        try {
+            List<Long> cells = new ArrayList<>(4);
+            for (int i = 0; i < img.count(); i++){
+                Note n = new Note(img.x(i), img.y(i), img.color(i), img.message(i), img.seq(i));
+                for (long p: img.pins(i)) n.addPin(p);
+                Region home = regions[regionOfPoint(n.x(), n.y())];
+                home.origins.add(pack(n.x(), n.y()));
+                home.text.add(n.seq(), n.message());
+                cells.clear();
+                gridCells(n, cells);
+                for (Long c: cells) regions[regionOfCell(c)].grid.computeIfAbsent(c, k -> new ArrayList<>()).add(n);
+                notes.put(n.seq(), n);
+                byColor.get(n.color()).put(n.seq(), n);
+                if (!n.hasAnyPins()) unpinned.add(n);
+            }
+            for (long p: img.pins()){
+                Pin placed = new Pin((int) (p >> 32), (int) p);
+                long s = pinSeq.incrementAndGet();
+                regions[regionOfPoint(placed.x(), placed.y())].pinSeqs.put(placed, s);
+                pins.put(s, placed);
+            }
+            seq.set(img.seq());
+            version.incrementAndGet();
+        } finally {
+            unlockAllWrite(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public byte[] getAllNotes(){
+        lockAllRead(); //Aquires every stripe
+        try {
+            byte[] hit = cached(CACHE_ALL);
+            return hit != null ? hit : remember(CACHE_ALL, renderNotes(notes.values()));
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public byte[] getNotesByColor(int color){
+        if (!isColor(color)) return renderNotes(Collections.emptyList());
+        lockAllRead(); //Aquires every stripe
+        try {
+            byte[] hit = cached(CACHE_COLOR + color);
+            return hit != null ? hit : remember(CACHE_COLOR + color, renderNotes(byColor.get(color).values()));
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public Page page(long after, Query q, int max, ByteArrayOutputStream out){
+        if (q.hasColor() && !isColor(q.color())) return new Page(0, after, false);
+        lockAllRead(); //Aquires every stripe
+        try {
+            if (plan(q, q.hasColor() ? byColor.get(q.color()).size() : -1, textSize(q)) == Source.TEXT){
+                return pageOf(notesOf(textCandidates(q.text()), after, notes::get), after, q, max, out);
+            }
+            //Both maps are keyed by seq, the cursor is where the tail starts
+            ConcurrentSkipListMap<Long, Note> m = q.hasColor() ? byColor.get(q.color()) : notes;
+            return pageOf(m.tailMap(after, false).values().iterator(), after, q, max, out);
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public byte[] query(Query q){
+        if (q.hasColor() && !isColor(q.color())) return renderNotes(Collections.emptyList());
+        List<Note> found = new ArrayList<>();
+        if (q.hasPoint()){
+            //Like getNotesAt, only the stripe owning the point is involved
+            if (!isOnBoardPoint(q.x(), q.y())) return renderNotes(found);
+            Region region = regions[regionOfPoint(q.x(), q.y())];
+            region.rw.readLock().lock(); //Aquires lock
+            try {
+                for (Note n: gridCandidates(q.x(), q.y())) if (matches(q, n)) found.add(n);
+            } finally {
+                region.rw.readLock().unlock(); //Releases lock
+            }
+            return renderNotes(found);
+        }
+        lockAllRead(); //Aquires every stripe
+        try {
+            Iterator<Note> source = plan(q, q.hasColor() ? byColor.get(q.color()).size() : -1, textSize(q)) == Source.TEXT
+                    ? notesOf(textCandidates(q.text()), 0, notes::get)
+                    : (q.hasColor() ? byColor.get(q.color()) : notes).values().iterator();
+            while (source.hasNext()){
+                Note n = source.next();
+                if (matches(q, n)) found.add(n);
+            }
+            return renderNotes(found);
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+
+    @Override
+    public byte[] getNotesAt(int x, int y){
+        if (!isOnBoardPoint(x, y)) return renderNotes(Collections.emptyList());
+        Region region = regions[regionOfPoint(x, y)];
+        region.rw.readLock().lock(); //Aquires lock
+        try {
+            List<Note> filtered = new ArrayList<>();
+            for (Note n: gridCandidates(x, y)) if (isPinInNote(n, x, y)) filtered.add(n);
+            return renderNotes(filtered);
+        } finally {
+            region.rw.readLock().unlock(); //Releases lock
+        }
+    }
+
+    @Override
+    public byte[] getAllPins(){
+        lockAllRead(); //Aquires every stripe
+        try {
+            byte[] hit = cached(CACHE_PINS);
+            return hit != null ? hit : remember(CACHE_PINS, renderPins(pins.values()));
+        } finally {
+            unlockAllRead(); //Releases every stripe
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.util.Arrays;
+
+public class TextIndex {
+    //Inverted index over note messages for GET refersTo=. The tokens are the overlapping GRAM character runs of a message,
+    //since refersTo= is a substring match and whole words could not find "lph" in "alpha". Each token maps to the seqs of
+    //the notes whose message has it, ascending. A search string of GRAM or more characters can only be inside notes that
+    //are on the list of every token it has, so intersecting those lists leaves a few candidates for contains to confirm.
+    //A list is stored as the gaps between its seqs, each a little endian base 128 varint. Seqs are handed out in posting
+    //order, so a busy token's gaps mostly fit in one byte where a long would take eight, and appending the newest note
+    //only writes at the end. Open addressing from the packed token to its list, with backward shift deletion like LongHashSet.
+    //Not thread safe, the owning board guards it with its own lock.
+    static final int GRAM = 3;
+    private static final long EMPTY = Long.MIN_VALUE;
+    //A list this many times longer than the candidates left is not worth decoding, contains confirms them anyway
+    private static final int SKIP_RATIO = 16;
+
+    private long[] keys = newKeys(64);
+    private byte[][] lists = new byte[64][];
+    private int[] bytes = new int[64]; //Bytes of lists[i] in use
+    private int[] counts = new int[64]; //Seqs on list i
+    private long[] lasts = new long[64]; //Largest seq on list i, the base the next gap is taken from
+    private int used;
+
+    private static long[] newKeys(int cap){
+        long[] k = new long[cap];
+        Arrays.fill(k, EMPTY);
+        return k;
+    }
+
+    private static int mix(long k){
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //Shorter search strings have no token to look up, callers scan for those.
+    static boolean indexable(String text) {return text.length() >= GRAM;}
+
+    //Three UTF-16 chars packed into 48 bits, never negative so it can not collide with EMPTY.
+    private static long token(String s, int i){
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    //Distinct tokens of a string in the order they first appear.
+    static long[] tokens(String s){
+        int n = Math.max(0, s.length() - GRAM + 1);
+        LongHashSet seen = new LongHashSet(n);
+        long[] out = new long[n];
+        int k = 0;
+        for (int i = 0; i < n; i++){
+            long t = token(s, i);
+            if (seen.add(t)) out[k++] = t;
+        }
+        return k == n ? out : Arrays.copyOf(out, k);
+    }
+
+    private int find(long t){
+        int mask = keys.length - 1;
+        for (int i = mix(t) & mask; keys[i] != EMPTY; i = (i + 1) & mask){
+            if (keys[i] == t) return i;
+        }
+        return -1;
+    }
+
+    void add(long seq, String message){
+        for (long t: tokens(message)){
+            int i = find(t);
+            if (i < 0) i = insert(t);
+            if (counts[i] == 0 || seq > lasts[i]){
+                //Seqs nearly always arrive in order, which is a gap written at the end
+                append(i, seq - lasts[i]);
+                lasts[i] = seq;
+                counts[i]++;
+                continue;
+            }
+            long[] l = decode(i);
+            int at = Arrays.binarySearch(l, seq);
+            if (at >= 0) continue;
+            at = -at - 1;
+            long[] with = new long[l.length + 1];
+            System.arraycopy(l, 0, with, 0, at);
+            with[at] = seq;
+            System.arraycopy(l, at, with, at + 1, l.length - at);
+            encode(i, with, with.length);
+        }
+    }
+
+    //Drops a batch of notes, given their seqs and messages. Each list they were on is decoded and written back once.
+    void removeAll(LongHashSet seqs, Iterable<String> messages){
+        LongHashSet touched = new LongHashSet();
+        for (String m: messages){
+            for (long t: tokens(m)){
+                if (!touched.add(t)) continue;
+                int i = find(t);
+                if (i < 0) continue;
+                long[] l = decode(i);
+                int k = 0;
+                for (long s: l) if (!seqs.contains(s)) l[k++] = s;
+                if (k == 0) delete(i);
+                else if (k < l.length) encode(i, l, k);
+            }
+        }
+    }
+
+    void clear(){
+        keys = newKeys(64);
+        lists = new byte[64][];
+        bytes = new int[64];
+        counts = new int[64];
+        lasts = new long[64];
+        used = 0;
+    }
+
+    //Length of the shortest list a search would start from, so the planner can weigh it against its other indexes.
+    //-1 when the text is too short to use the index.
+    int estimate(String text){
+        if (!indexable(text)) return -1;
+        int best = Integer.MAX_VALUE;
+        for (long t: tokens(text)){
+            int i = find(t);
+            if (i < 0) return 0;
+            best = Math.min(best, counts[i]);
+        }
+        return best;
+    }
+
+    //Seqs of the notes that have every token of text, ascending. They still have to be checked with contains, since
+    //having all the tokens does not mean having them next to each other, and lists far longer than what is left
+    //are not intersected at all.
+    long[] candidates(String text){
+        long[] ts = tokens(text);
+        int[] at = new int[ts.length];
+        for (int k = 0; k < ts.length; k++){
+            at[k] = find(ts[k]);
+            if (at[k] < 0) return new long[0];
+        }
+        //Start from the shortest list and keep only what every other list also has
+        Integer[] order = new Integer[ts.length];
+        for (int k = 0; k < order.length; k++) order[k] = at[k];
+        Arrays.sort(order, (a, b) -> Integer.compare(counts[a], counts[b]));
+        long[] out = decode(order[0]);
+        int n = out.length;
+        for (int k = 1; k < order.length && n > 0 && counts[order[k]] / SKIP_RATIO <= n; k++){
+            //Both sides ascend, so one pass over the gaps keeps the seqs both lists have
+            byte[] l = lists[order[k]];
+            int end = bytes[order[k]], pos = 0, kept = 0, j = 0;
+            long s = 0;
+            while (pos < end && j < n){
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = l[pos++];
+                    gap |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                s += gap;
+                while (j < n && out[j] < s) j++;
+                if (j < n && out[j] == s) out[kept++] = out[j++];
+            }
+            n = kept;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private void append(int i, long gap){
+        byte[] l = lists[i];
+        int pos = bytes[i];
+        if (l.length - pos < 10) l = lists[i] = Arrays.copyOf(l, Math.max(l.length * 2, pos + 10));
+        while ((gap & ~0x7fL) != 0){
+            l[pos++] = (byte) (gap | 0x80);
+            gap >>>= 7;
+        }
+        l[pos++] = (byte) gap;
+        bytes[i] = pos;
+    }
+
+    private long[] decode(int i){
+        byte[] l = lists[i];
+        long[] out = new long[counts[i]];
+        long s = 0;
+        for (int pos = 0, k = 0; k < out.length; k++){
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = l[pos++];
+                gap |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            out[k] = s += gap;
+        }
+        return out;
+    }
+
+    //Rewrites list i as the first n seqs of l, which ascend.
+    private void encode(int i, long[] l, int n){
+        lists[i] = new byte[Math.max(2, n)];
+        bytes[i] = 0;
+        long last = 0;
+        for (int k = 0; k < n; k++){
+            append(i, l[k] - last);
+            last = l[k];
+        }
+        counts[i] = n;
+        lasts[i] = last;
+    }
+
+    private int insert(long t){
+        if ((used + 1) * 2 > keys.length) grow();
+        int mask = keys.length - 1;
+        int i = mix(t) & mask;
+        while (keys[i] != EMPTY) i = (i + 1) & mask;
+        keys[i] = t;
+        lists[i] = new byte[2];
+        bytes[i] = 0;
+        counts[i] = 0;
+        lasts[i] = 0;
+        used++;
+        return i;
+    }
+
+    private void delete(int i){
+        int mask = keys.length - 1;
+        //Shift later entries of the probe run back so lookups never stop early
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                keys[gap] = keys[j];
+                lists[gap] = lists[j];
+                bytes[gap] = bytes[j];
+                counts[gap] = counts[j];
+                lasts[gap] = lasts[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        lists[gap] = null;
+        bytes[gap] = 0;
+        counts[gap] = 0;
+        lasts[gap] = 0;
+        used--;
+    }
+
+    private void grow(){
+        long[] oldKeys = keys;
+        byte[][] oldLists = lists;
+        int[] oldBytes = bytes, oldCounts = counts;
+        long[] oldLasts = lasts;
+        keys = newKeys(oldKeys.length * 2);
+        lists = new byte[keys.length][];
+        bytes = new int[keys.length];
+        counts = new int[keys.length];
+        lasts = new long[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++){
+            if (oldKeys[j] == EMPTY) continue;
+            int i = mix(oldKeys[j]) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            lists[i] = oldLists[j];
+            bytes[i] = oldBytes[j];
+            counts[i] = oldCounts[j];
+            lasts[i] = oldLasts[j];
+        }
+    }
+}
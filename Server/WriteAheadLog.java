@@ -0,0 +1,485 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+public class WriteAheadLog implements Closeable {
+    //Append-only log of board mutations so a restart can rebuild the board. Engines append a record while they still hold
+    //the lock that ordered the change, so the file has mutations in the order they were applied.
+    //Appends only copy into a memory buffer. One flusher thread writes whole batches and fsyncs them per the Sync policy,
+    //so many writers share one fsync (group commit).
+    //Record layout: int length, int crc32c of the body, then the body: a type byte and its fields.
+    //The log is split into segments, FILE then FILE.1, FILE.2 and so on. A snapshot cuts a new segment, and once the snapshot
+    //is safely on disk every segment before the cut is deleted.
+
+    public enum Sync {
+        ALWAYS,   //A mutation is acknowledged only after its record is fsynced
+        INTERVAL, //Fsync every interval, a crash loses at most that window
+        NEVER     //Written every interval but left to the OS to sync
+    }
+
+    static final byte POST = 1, PIN = 2, UNPIN = 3, SHAKE = 4, CLEAR = 5;
+    private static final int HEADER = 8;
+    //Anything longer is treated as a torn or corrupt record at replay
+    private static final int MAX_RECORD = 4 << 20;
+
+    private final Path base;
+    private FileChannel ch; //Only touched by the flusher once the log is open
+    private final Sync sync;
+    private final long intervalMs;
+    private final Thread flusher;
+
+    //A lock rather than the monitor, so a virtual thread waiting for the fsync unmounts instead of pinning its carrier.
+    //changed is signalled whenever anything below moves.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    //Guarded by lock. Records are numbered in append order; durable means written, and fsynced unless the policy is NEVER.
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appended, durable;
+    private int bodyStart;
+    private boolean closed;
+    private IOException failure;
+    //Segment being appended to, and the pending buffer offset where the next one starts (-1 for none).
+    private long segment;
+    private int rotateAt = -1;
+    private boolean rotating;
+    //Callbacks waiting for a record to become durable, see whenDurable
+    private final List<Waiter> waiters = new ArrayList<>();
+    private record Waiter(long record, Runnable then) {}
+
+    //Last record each thread appended, which is what that thread waits on before acknowledging.
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final CRC32C crc = new CRC32C();
+
+    private WriteAheadLog(Path base, long segment, FileChannel ch, Sync sync, long intervalMs){
+        this.base = base;
+        this.segment = segment;
+        this.ch = ch;
+        this.sync = sync;
+        this.intervalMs = Math.max(1, intervalMs);
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    //Opens the log for appending after a startup replay. covered is the last segment a loaded snapshot already includes
+    //(-1 for none); those segments are deleted and appends continue in the newest remaining one.
+    public static WriteAheadLog open(Path base, long covered, Sync sync, long intervalMs) throws IOException {
+        long last = covered + 1;
+        for (long n: segments(base)){
+            if (n <= covered) Files.deleteIfExists(segmentPath(base, n));
+            else last = Math.max(last, n);
+        }
+        return new WriteAheadLog(base, last, openSegment(segmentPath(base, last)), sync, intervalMs);
+    }
+
+    private static FileChannel openSegment(Path path) throws IOException {
+        boolean created = !Files.exists(path);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.position(ch.size());
+        //A new segment's name has to be on disk too, or fsyncing the records in it would not be enough
+        if (created) BoardImage.syncDirectory(path);
+        return ch;
+    }
+
+    static Path segmentPath(Path base, long n){
+        return n == 0 ? base : base.resolveSibling(base.getFileName() + "." + n);
+    }
+
+    //Segment numbers present on disk, oldest first.
+    static List<Long> segments(Path base) throws IOException {
+        List<Long> found = new ArrayList<>();
+        if (Files.exists(base)) found.add(0L);
+        Path dir = base.toAbsolutePath().getParent();
+        String prefix = base.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")){
+            for (Path f: files){
+                String suffix = f.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) found.add(Long.parseLong(suffix));
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    //Ends the current segment at this exact point in the record stream and returns its number. Called by a snapshot
+    //while the board is locked against writers, so everything up to the cut is in the snapshot and nothing after it is.
+    public long rotate(){
+        lock.lock();
+        try {
+            while ((rotateAt >= 0 || rotating) && failure == null){
+                try {
+                    changed.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            rotateAt = pending.position();
+            changed.signalAll();
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Deletes segment n and every older one, once the flusher has moved past it.
+    public void deleteThrough(long n) throws IOException {
+        lock.lock();
+        try {
+            while (segment <= n && failure == null && !closed){
+                try {
+                    changed.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (segment <= n) return;
+        } finally {
+            lock.unlock();
+        }
+        for (long old: segments(base)) if (old <= n) Files.deleteIfExists(segmentPath(base, old));
+    }
+
+    //Records appended since the log was opened, lets the snapshot thread skip a board that has not changed.
+    public long appended(){
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Parses the --fsync switch: always, never, or an interval in milliseconds.
+    public static Sync parseSync(String s){
+        return switch (s) {
+            case "always" -> Sync.ALWAYS;
+            case "never" -> Sync.NEVER;
+            default -> {
+                if (s.isEmpty() || !s.chars().allMatch(Character::isDigit)) throw new IllegalArgumentException("Unknown fsync policy: " + s);
+                yield Sync.INTERVAL;
+            }
+        };
+    }
+
+    //Appenders. Colors are logged by name so a log stays readable if the configured color order changes.
+    public void post(int x, int y, String color, String message){
+        byte[] c = color.getBytes(StandardCharsets.UTF_8);
+        byte[] m = message.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            ByteBuffer b = begin(1 + 8 + 4 + c.length + 4 + m.length);
+            b.put(POST).putInt(x).putInt(y).putInt(c.length).put(c).putInt(m.length).put(m);
+            end(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pin(int x, int y){ point(PIN, x, y); }
+    public void unpin(int x, int y){ point(UNPIN, x, y); }
+    public void shake(){ single(SHAKE); }
+    public void clear(){ single(CLEAR); }
+
+    private void point(byte type, int x, int y){
+        lock.lock();
+        try {
+            end(begin(1 + 8).put(type).putInt(x).putInt(y));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void single(byte type){
+        lock.lock();
+        try {
+            end(begin(1).put(type));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Reserves room for one record and skips its header, which end fills in once the body length is known.
+    private ByteBuffer begin(int bodyLength){
+        if (closed) throw new IllegalStateException("log closed");
+        if (pending.remaining() < HEADER + bodyLength){
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + HEADER + bodyLength));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        bodyStart = pending.position() + HEADER;
+        pending.position(bodyStart);
+        return pending;
+    }
+
+    private void end(ByteBuffer b){
+        int length = b.position() - bodyStart;
+        crc.reset();
+        crc.update(b.array(), bodyStart, length);
+        b.putInt(bodyStart - HEADER, length);
+        b.putInt(bodyStart - 4, (int) crc.getValue());
+        lastAppended.get()[0] = ++appended;
+        if (sync == Sync.ALWAYS) changed.signalAll();
+    }
+
+    //Blocks until everything this thread appended is durable. Only the ALWAYS policy waits.
+    public void awaitDurable(){
+        if (sync != Sync.ALWAYS) return;
+        long mine = lastAppended.get()[0];
+        if (mine == 0) return;
+        lock.lock();
+        try {
+            while (durable < mine && failure == null){
+                try {
+                    changed.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (failure != null) throw new UncheckedIOException(failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The record this thread appended last if it is not durable yet, else 0. Lets an event loop hold a reply instead of
+    //blocking in awaitDurable. Always 0 unless the policy is ALWAYS.
+    public long pending(){
+        if (sync != Sync.ALWAYS) return 0;
+        long mine = lastAppended.get()[0];
+        lock.lock();
+        try {
+            return durable >= mine ? 0 : mine;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Runs then once record is durable (or the log failed), on the flusher thread, or right away if it already is.
+    public void whenDurable(long record, Runnable then){
+        lock.lock();
+        try {
+            if (durable < record && failure == null){
+                waiters.add(new Waiter(record, then));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        then.run();
+    }
+
+    //Throws if the log failed before record was made durable.
+    public boolean isDurable(long record){
+        lock.lock();
+        try {
+            if (durable >= record) return true;
+            if (failure != null) throw new UncheckedIOException(failure);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop(){
+        while (true) {
+            ByteBuffer batch;
+            long upTo, next;
+            int cut;
+            boolean last;
+            lock.lock();
+            try {
+                try {
+                    //ALWAYS writes as soon as there is anything, batching whatever piled up during the last fsync.
+                    //The other policies wake on a timer.
+                    if (sync == Sync.ALWAYS){
+                        while (pending.position() == 0 && rotateAt < 0 && !closed) changed.await();
+                    } else if (!closed) {
+                        changed.await(intervalMs, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e){
+                    closed = true;
+                }
+                last = closed;
+                batch = pending;
+                pending = spare;
+                pending.clear();
+                upTo = appended;
+                cut = rotateAt;
+                rotating = cut >= 0;
+                rotateAt = -1;
+                next = segment + 1;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException err = null;
+            try {
+                batch.flip();
+                if (cut >= 0){
+                    //Finish the old segment up to the cut and carry on in a fresh one
+                    ByteBuffer head = batch.duplicate().limit(cut);
+                    while (head.hasRemaining()) ch.write(head);
+                    ch.force(false);
+                    ch.close();
+                    ch = openSegment(segmentPath(base, next));
+                    batch.position(cut);
+                }
+                //Idle timer ticks have nothing to write or sync
+                if (batch.hasRemaining() || last){
+                    while (batch.hasRemaining()) ch.write(batch);
+                    if (sync != Sync.NEVER || last) ch.force(false);
+                }
+            } catch (IOException e){
+                err = e;
+            }
+
+            List<Runnable> done = new ArrayList<>();
+            lock.lock();
+            try {
+                spare = batch;
+                if (err != null){
+                    if (failure == null) System.err.println("write-ahead log failed: " + err.getMessage());
+                    failure = err;
+                } else {
+                    durable = upTo;
+                    if (cut >= 0) segment = next;
+                }
+                rotating = false;
+                changed.signalAll();
+                for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();){
+                    Waiter w = it.next();
+                    if (w.record() <= durable || failure != null){
+                        done.add(w.then());
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            //Outside the lock, a callback may well append or wait on the log itself
+            for (Runnable r: done) r.run();
+            if (last) return;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        ch.close();
+        if (failure != null) throw failure;
+    }
+
+    //Replays every segment newer than covered, oldest first, and returns how many records were applied.
+    //A segment with a torn or corrupt tail ends the replay: the records after the gap can not be applied without the
+    //ones lost in it. Later segments are renamed out of the way with a .orphaned suffix, so neither this start nor the
+    //next one replays them and appends carry on after the last good record.
+    public static long replayAll(Path base, long covered, Board board, Protocol.Config cfg) throws IOException {
+        long applied = 0;
+        boolean torn = false;
+        for (long n: segments(base)){
+            if (n <= covered) continue;
+            Path path = segmentPath(base, n);
+            if (torn){
+                Files.move(path, path.resolveSibling(path.getFileName() + ".orphaned"), StandardCopyOption.REPLACE_EXISTING);
+                System.err.println("write-ahead log: segment " + n + " follows a corrupt one, kept aside as " + path.getFileName() + ".orphaned");
+                continue;
+            }
+            long[] count = new long[1];
+            torn = !replay(path, board, cfg, count);
+            applied += count[0];
+        }
+        return applied;
+    }
+
+    //Replays every intact record of one segment into the board and returns how many were applied.
+    //A torn or corrupt record ends the replay and the file is cut back to the last good record, so appends continue cleanly.
+    public static long replay(Path path, Board board, Protocol.Config cfg) throws IOException {
+        long[] count = new long[1];
+        replay(path, board, cfg, count);
+        return count[0];
+    }
+
+    //Same, with the count in applied[0]. false when the segment had a tail that was cut off.
+    private static boolean replay(Path path, Board board, Protocol.Config cfg, long[] applied) throws IOException {
+        if (!path.toFile().exists()) return true;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 16))){
+            long good = 0;
+            long size = ch.size();
+            CRC32C crc = new CRC32C();
+            byte[] body = new byte[256];
+            while (size - good >= HEADER){
+                int length = in.readInt();
+                int sum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD || length > size - good - HEADER) break;
+                if (body.length < length) body = new byte[Math.max(length, body.length * 2)];
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != sum) break;
+                apply(ByteBuffer.wrap(body, 0, length), board, cfg);
+                applied[0]++;
+                good += HEADER + length;
+            }
+            if (good < size){
+                System.err.println("write-ahead log: dropping " + (size - good) + " bytes of torn or corrupt tail");
+                ch.truncate(good);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void apply(ByteBuffer b, Board board, Protocol.Config cfg){
+        switch (b.get()) {
+            case POST -> {
+                int x = b.getInt(), y = b.getInt();
+                String color = readString(b);
+                String message = readString(b);
+                Integer ord = cfg.colorOrdinals().get(color);
+                //A color dropped from the configuration since the record was written cannot be placed any more
+                if (ord != null) board.post(x, y, ord, message);
+            }
+            case PIN -> board.pin(b.getInt(), b.getInt());
+            case UNPIN -> board.unpin(b.getInt(), b.getInt());
+            case SHAKE -> board.shake();
+            case CLEAR -> board.clear();
+            default -> {}
+        }
+    }
+
+    private static String readString(ByteBuffer b){
+        int n = b.getInt();
+        String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+        b.position(b.position() + n);
+        return s;
+    }
+}